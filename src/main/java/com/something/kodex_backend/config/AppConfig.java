@@ -2,6 +2,7 @@ package com.something.kodex_backend.config;
 
 import com.github.dockerjava.api.DockerClient;
 import com.github.dockerjava.api.model.Container;
+import com.something.kodex_backend.project.SyncJournal;
 import com.something.kodex_backend.user.Role;
 import com.something.kodex_backend.user.User;
 import com.something.kodex_backend.user.UserRepository;
@@ -21,6 +22,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
 
 @Configuration
 @RequiredArgsConstructor
@@ -28,6 +30,7 @@ public class AppConfig {
 
   private final UserRepository userRepository;
   private final DockerClient dockerClient;
+  private final SyncJournal syncJournal;
 
   @Bean
   public ModelMapper modelMapper() {
@@ -92,14 +95,21 @@ public class AppConfig {
   @Bean
   public CommandLineRunner ensureLocalProjectRootDirectory() {
     return args -> {
-      // first delete the projects directory for a fresh start
       Path projectRootDir = Path.of("/tmp/kodex/projects");
 
-      // cleanup everything
-      FileSystemUtils.deleteRecursively(projectRootDir.getParent());
-
-      // create the project root again
       Files.createDirectories(projectRootDir);
+
+      // project folders left behind with a persisted sync state are kept,
+      // the next open reconciles them with drive instead of pulling everything
+      // (and unpushed edits from before the restart aren't lost)
+      // everything else is cleaned up for a fresh start
+      try(Stream<Path> projects = Files.list(projectRootDir)) {
+        for(Path project : projects.toList()) {
+          if(!syncJournal.exists(project.getFileName().toString())) {
+            FileSystemUtils.deleteRecursively(project);
+          }
+        }
+      }
     };
   }
 
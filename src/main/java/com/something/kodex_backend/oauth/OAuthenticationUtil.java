@@ -114,6 +114,11 @@ public class OAuthenticationUtil {
   }
 
   public String getAccessToken(String refreshToken) {
+    return refreshAccessToken(refreshToken).getAccessToken();
+  }
+
+  // same as getAccessToken but keeps the expiry, for callers which cache the token
+  public CustomGoogleTokenResponse refreshAccessToken(String refreshToken) {
     RestTemplate restTemplate = new RestTemplate();
 
     HttpHeaders headers = new HttpHeaders();
@@ -131,11 +136,9 @@ public class OAuthenticationUtil {
 
       if(tokenResponse == null) throw new RuntimeException("Failed to receive a token response from Google!");
 
-      String accessToken = tokenResponse.getAccessToken();
-
-      if(accessToken == null) throw new MissingTokenException("Error while obtaining oauth access token!");
+      if(tokenResponse.getAccessToken() == null) throw new MissingTokenException("Error while obtaining oauth access token!");
 
-      return accessToken;
+      return tokenResponse;
 
     } catch(RestClientException ex) {
       throw new RuntimeException(ex);
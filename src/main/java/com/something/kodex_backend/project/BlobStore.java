@@ -0,0 +1,206 @@
+package com.something.kodex_backend.project;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+// content addressed copy of every file pulled from drive, keyed by its md5
+// shared by all projects (and users), so a file already pulled once for any
+// project is copied from here instead of downloaded again
+// least recently used blobs are evicted once the store grows over the limit
+// blobs are copied, not hard linked, editors write into files in place and
+// that would change the blob (and every other project linked to it)
+// a blob is hashed as it's copied in and only kept if that matches its key, the source
+// may be a working file edited while it's copied, and blobs are handed out unchecked
+@Slf4j
+@Component
+public class BlobStore {
+
+  @Value("${kodex.sync.blob-dir:/tmp/kodex/blobs}")
+  private Path blobDir;
+
+  @Value("${kodex.sync.blob-cache-max-bytes:2147483648}")
+  private long maxBytes;
+
+  // (md5, size of the blob), in least recently used first order
+  private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<> (16, 0.75f, true);
+  private long totalBytes;
+
+  // pick up the blobs of the last run, oldest access first
+  @PostConstruct
+  public void load() throws IOException {
+    Files.createDirectories(blobDir);
+
+    List<Path> existing;
+    try(Stream<Path> paths = Files.walk(blobDir)) {
+      existing = paths.filter(Files::isRegularFile).toList();
+    }
+
+    existing.stream()
+      .sorted(Comparator.comparing(BlobStore::lastModified))
+      .forEach(path -> {
+        String name = path.getFileName().toString();
+
+        // leftovers of a copy which never finished
+        if(name.endsWith(".tmp")) {
+          deleteQuietly(path);
+          return;
+        }
+
+        try {
+          long size = Files.size(path);
+
+          synchronized(this) {
+            blobs.put(name, size);
+            totalBytes += size;
+          }
+        } catch(IOException ex) {
+          log.warn("Failed to read blob {}", path, ex);
+        }
+      });
+
+    synchronized(this) {
+      evict();
+    }
+
+    log.info("Blob store has {} blobs, {} bytes", blobs.size(), totalBytes);
+  }
+
+  // copy the blob with this md5 to destination, false if there's no such blob
+  public boolean copyTo(String md5Checksum, Path destination) {
+    if(md5Checksum == null) return false;
+
+    Path blob = blobPath(md5Checksum);
+
+    synchronized(this) {
+      // marks it as recently used too
+      if(blobs.get(md5Checksum) == null) return false;
+    }
+
+    try {
+      Files.copy(blob, destination, StandardCopyOption.REPLACE_EXISTING);
+      // the modified time keeps the lru order across restarts
+      Files.setLastModifiedTime(blob, FileTime.fromMillis(System.currentTimeMillis()));
+
+      return true;
+    } catch(NoSuchFileException ex) {
+      // evicted in the meantime
+      return false;
+    } catch(IOException ex) {
+      log.warn("Failed to copy blob {} to {}", md5Checksum, destination, ex);
+
+      return false;
+    }
+  }
+
+  // keep a copy of a file whose content is supposed to have this md5
+  public void add(String md5Checksum, Path source) {
+    if(md5Checksum == null) return;
+
+    synchronized(this) {
+      if(blobs.containsKey(md5Checksum)) return;
+    }
+
+    Path blob = blobPath(md5Checksum);
+    Path temp = blob.resolveSibling(md5Checksum + "." + Thread.currentThread().threadId() + ".tmp");
+
+    try {
+      long size = Files.size(source);
+
+      // a single blob this big would push out most of the others
+      if(size > maxBytes / 4) return;
+
+      Files.createDirectories(blob.getParent());
+
+      MessageDigest md5 = newMd5Digest();
+
+      try(InputStream in = new DigestInputStream(Files.newInputStream(source), md5)) {
+        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      if(!HexFormat.of().formatHex(md5.digest()).equals(md5Checksum)) {
+        log.warn("{} changed while it was copied, not keeping it as blob {}", source, md5Checksum);
+        deleteQuietly(temp);
+
+        return;
+      }
+
+      size = Files.size(temp);
+
+      synchronized(this) {
+        if(blobs.containsKey(md5Checksum)) {
+          Files.delete(temp);
+          return;
+        }
+
+        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        blobs.put(md5Checksum, size);
+        totalBytes += size;
+
+        evict();
+      }
+    } catch(IOException ex) {
+      log.warn("Failed to add blob {} from {}", md5Checksum, source, ex);
+      deleteQuietly(temp);
+    }
+  }
+
+  // must be called holding the lock
+  private void evict() {
+    Iterator<Map.Entry<String, Long>> iterator = blobs.entrySet().iterator();
+
+    while(totalBytes > maxBytes && iterator.hasNext()) {
+      Map.Entry<String, Long> eldest = iterator.next();
+
+      deleteQuietly(blobPath(eldest.getKey()));
+      totalBytes -= eldest.getValue();
+      iterator.remove();
+    }
+  }
+
+  // fanned out by the first two characters so no single folder gets huge
+  private Path blobPath(String md5Checksum) {
+    return blobDir.resolve(md5Checksum.substring(0, 2)).resolve(md5Checksum);
+  }
+
+  private static MessageDigest newMd5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch(NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static long lastModified(Path path) {
+    try {
+      return Files.getLastModifiedTime(path).toMillis();
+    } catch(IOException ex) {
+      return 0L;
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch(IOException ex) {
+      log.warn("Failed to delete {}", path, ex);
+    }
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,221 @@
+package com.something.kodex_backend.project;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+// content defined chunk lists (manifests) of big files, kept next to the sync state
+// a file is cut where a gear rolling hash over its bytes hits a boundary pattern, so
+// an edit only changes the chunks around it and every other chunk stays the same
+// drive still gets the whole file on upload, but comparing the manifest of the last
+// pushed version with the current one tells how much of a file really changed
+// the same pass computes the md5 and the xxh64 of the file, so it's read only once either way
+@Slf4j
+@Component
+public class ChunkManifests {
+
+  private static final int MANIFEST_VERSION = 1;
+  private static final int MIN_CHUNK_BYTES = 16 * 1024;
+  private static final int MAX_CHUNK_BYTES = 256 * 1024;
+  // top 16 bits of the rolling hash all zero, ~64 KiB chunks on average
+  private static final long BOUNDARY_MASK = 0xFFFF_0000_0000_0000L;
+  private static final int READ_BUFFER_BYTES = 1024 * 1024;
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // fixed seed, chunk boundaries have to be the same on every run
+    SplittableRandom random = new SplittableRandom(0x6b6f646578L);
+
+    for(int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  @Value("${kodex.sync.state-dir:/tmp/kodex/sync-state}")
+  private Path stateDir;
+
+  // reads the file once, computing its md5, its xxh64 and, if chunked, its chunks
+  public FileScan scan(Path file, boolean chunked) throws IOException {
+    MessageDigest md5 = newMd5Digest();
+    XxHash64.Hasher xxh64 = new XxHash64.Hasher();
+    List<Chunk> chunks = chunked ? new ArrayList<> () : null;
+    CRC32C crc = new CRC32C();
+    ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+    long hash = 0;
+    int chunkLength = 0;
+
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while(channel.read(buffer) != -1) {
+        buffer.flip();
+
+        byte[] bytes = buffer.array();
+        int limit = buffer.limit();
+        int chunkStart = 0;
+
+        md5.update(bytes, 0, limit);
+        xxh64.update(bytes, 0, limit);
+
+        if(!chunked) {
+          buffer.clear();
+
+          continue;
+        }
+
+        for(int i = 0; i < limit; i++) {
+          hash = (hash << 1) + GEAR[bytes[i] & 0xff];
+          chunkLength++;
+
+          boolean boundary = chunkLength >= MIN_CHUNK_BYTES && (hash & BOUNDARY_MASK) == 0;
+
+          if(boundary || chunkLength >= MAX_CHUNK_BYTES) {
+            crc.update(bytes, chunkStart, i + 1 - chunkStart);
+            chunks.add(new Chunk(chunkLength, (int) crc.getValue()));
+
+            crc.reset();
+            hash = 0;
+            chunkLength = 0;
+            chunkStart = i + 1;
+          }
+        }
+
+        // the chunk goes on into the next read
+        crc.update(bytes, chunkStart, limit - chunkStart);
+        buffer.clear();
+      }
+    }
+
+    if(chunkLength > 0) {
+      chunks.add(new Chunk(chunkLength, (int) crc.getValue()));
+    }
+
+    return new FileScan(HexFormat.of().formatHex(md5.digest()), xxh64.digest(), chunks);
+  }
+
+  // bytes of current which aren't in a chunk of the last saved manifest
+  // everything counts as changed if there's no manifest yet
+  public long changedBytes(Integer projectId, String relativePath, List<Chunk> current) {
+    Optional<List<Chunk>> previous = load(projectId, relativePath);
+
+    long changed = 0;
+
+    if(previous.isEmpty()) {
+      for(Chunk chunk : current) changed += chunk.length();
+
+      return changed;
+    }
+
+    Set<Chunk> known = new HashSet<> (previous.get());
+
+    for(Chunk chunk : current) {
+      if(!known.contains(chunk)) changed += chunk.length();
+    }
+
+    return changed;
+  }
+
+  public Optional<List<Chunk>> load(Integer projectId, String relativePath) {
+    Path path = manifestPath(projectId, relativePath);
+
+    if(!Files.exists(path)) return Optional.empty();
+
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+      if(in.readInt() != MANIFEST_VERSION) return Optional.empty();
+
+      int count = in.readInt();
+      List<Chunk> chunks = new ArrayList<> (count);
+
+      for(int i = 0; i < count; i++) {
+        chunks.add(new Chunk(in.readInt(), in.readInt()));
+      }
+
+      return Optional.of(chunks);
+    } catch(IOException ex) {
+      log.warn("Failed to read chunk manifest {}", path, ex);
+
+      return Optional.empty();
+    }
+  }
+
+  // a manifest is only a hint, failing to save it just makes the next diff bigger
+  public void save(Integer projectId, String relativePath, List<Chunk> chunks) {
+    Path path = manifestPath(projectId, relativePath);
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try {
+      Files.createDirectories(path.getParent());
+
+      try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MANIFEST_VERSION);
+        out.writeInt(chunks.size());
+
+        for(Chunk chunk : chunks) {
+          out.writeInt(chunk.length());
+          out.writeInt(chunk.crc());
+        }
+      }
+
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch(IOException ex) {
+      log.warn("Failed to save chunk manifest of {} in project {}", relativePath, projectId, ex);
+    }
+  }
+
+  public void delete(Integer projectId, String relativePath) {
+    try {
+      Files.deleteIfExists(manifestPath(projectId, relativePath));
+    } catch(IOException ex) {
+      log.warn("Failed to delete chunk manifest of {} in project {}", relativePath, projectId, ex);
+    }
+  }
+
+  public void deleteProject(Integer projectId) {
+    try {
+      FileSystemUtils.deleteRecursively(projectDir(projectId));
+    } catch(IOException ex) {
+      log.warn("Failed to delete chunk manifests of project {}", projectId, ex);
+    }
+  }
+
+  private Path projectDir(Integer projectId) {
+    return stateDir.resolve("manifests").resolve(projectId.toString());
+  }
+
+  // paths can be deep and contain anything, so the file is named after their hash
+  private Path manifestPath(Integer projectId, String relativePath) {
+    String name = DigestUtils.md5DigestAsHex(relativePath.getBytes(StandardCharsets.UTF_8));
+
+    return projectDir(projectId).resolve(name);
+  }
+
+  private static MessageDigest newMd5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch(NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  public record Chunk(int length, int crc) {
+  }
+
+  // chunks is null if the file wasn't chunked
+  public record FileScan(String md5Checksum, long contentHash, List<Chunk> chunks) {
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.something.kodex_backend.project;
+
+// a single entry of the drive changes feed
+// removed is true for deleted, trashed and no longer accessible files
+// all the other fields are null/0 for removed files
+public record DriveChange(
+  String googleDriveId,
+  boolean removed,
+  boolean folder,
+  String name,
+  String parentId,
+  String md5Checksum,
+  long modifiedAt,
+  long size
+) {
+}
@@ -0,0 +1,10 @@
+package com.something.kodex_backend.project;
+
+import java.util.List;
+
+public record DriveChanges(
+  List<DriveChange> changes,
+  // token to ask for the changes after these ones
+  String newStartPageToken
+) {
+}
@@ -0,0 +1,255 @@
+package com.something.kodex_backend.project;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+// sits in front of every drive request
+//  - a global token bucket keeps the whole app under the drive quota
+//  - a token bucket per user keeps one user's big pull from eating all of it
+//  - concurrency per user follows aimd: +1 (per window) on success, halved on a rate limit
+// rate limited requests are retried with exponential backoff and jitter
+@Slf4j
+@Component
+public class DriveGovernor {
+
+  // number of users whose limits are remembered
+  private static final int MAX_TRACKED_USERS = 256;
+  private static final long BASE_BACKOFF_MILLIS = 500;
+  private static final long MAX_BACKOFF_MILLIS = 32_000;
+
+  @Value("${kodex.drive.requests-per-second:100}")
+  private double requestsPerSecond;
+
+  @Value("${kodex.drive.user-requests-per-second:20}")
+  private double userRequestsPerSecond;
+
+  // concurrent requests per user start here and move between 1 and max-concurrency
+  @Value("${kodex.drive.initial-concurrency:8}")
+  private int initialConcurrency;
+
+  @Value("${kodex.drive.max-concurrency:32}")
+  private int maxConcurrency;
+
+  @Value("${kodex.drive.max-retries:5}")
+  private int maxRetries;
+
+  private TokenBucket globalBucket;
+
+  // (user key, its limits), the key is the user's access token
+  // which is handed out per user, see ProjectUtil
+  private final Map<String, UserLimits> users = new LinkedHashMap<> (16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, UserLimits> eldest) {
+      return size() > MAX_TRACKED_USERS;
+    }
+  };
+
+  @FunctionalInterface
+  public interface DriveCall<T> {
+
+    T call() throws IOException;
+
+  }
+
+  // runs the call, retrying it while drive says it's rate limited
+  // the call must be safe to repeat
+  public <T> T execute(String userKey, int cost, DriveCall<T> call) throws IOException {
+    for(int attempt = 0; ; attempt++) {
+      try {
+        return executeOnce(userKey, cost, call);
+      } catch(IOException ex) {
+        if(!isRateLimited(ex) || attempt >= maxRetries) throw ex;
+
+        backOff(attempt);
+      }
+    }
+  }
+
+  // same as execute without retrying, for callers which have their own retry logic
+  public <T> T executeOnce(String userKey, int cost, DriveCall<T> call) throws IOException {
+    UserLimits limits = limits(userKey);
+
+    globalBucket().take(cost);
+    limits.bucket.take(cost);
+    limits.concurrency.acquire();
+
+    try {
+      T result = call.call();
+      limits.concurrency.onSuccess();
+
+      return result;
+    } catch(IOException ex) {
+      if(isRateLimited(ex)) {
+        limits.concurrency.onRateLimited();
+        log.warn("Drive rate limited a request, concurrency lowered to {}", limits.concurrency.limit());
+      }
+
+      throw ex;
+    } finally {
+      limits.concurrency.release();
+    }
+  }
+
+  // for batch requests, whose sub requests report rate limits one by one
+  public void onRateLimited(String userKey) {
+    limits(userKey).concurrency.onRateLimited();
+  }
+
+  // sleeps before the next attempt, exponential with jitter
+  public void backOff(int attempt) throws InterruptedIOException {
+    long ceiling = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+
+    sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+  }
+
+  public int getMaxRetries() {
+    return maxRetries;
+  }
+
+  public static boolean isRateLimited(IOException ex) {
+    if(!(ex instanceof HttpResponseException responseException)) return false;
+
+    int statusCode = responseException.getStatusCode();
+
+    if(statusCode == 429) return true;
+    if(statusCode != 403) return false;
+
+    // drive also uses 403 for rate limits, told apart by the reason
+    if(ex instanceof GoogleJsonResponseException jsonException && jsonException.getDetails() != null) {
+      return isRateLimited(jsonException.getDetails());
+    }
+
+    String content = responseException.getContent();
+
+    return content != null && (content.contains("rateLimitExceeded") || content.contains("userRateLimitExceeded"));
+  }
+
+  public static boolean isRateLimited(GoogleJsonError error) {
+    if(error.getCode() == 429) return true;
+    if(error.getCode() != 403 || error.getErrors() == null) return false;
+
+    return error.getErrors().stream().anyMatch(info ->
+      "rateLimitExceeded".equals(info.getReason()) || "userRateLimitExceeded".equals(info.getReason())
+    );
+  }
+
+  private synchronized TokenBucket globalBucket() {
+    if(globalBucket == null) globalBucket = new TokenBucket(requestsPerSecond);
+
+    return globalBucket;
+  }
+
+  private UserLimits limits(String userKey) {
+    synchronized(users) {
+      return users.computeIfAbsent(userKey, k -> new UserLimits(
+        new TokenBucket(userRequestsPerSecond),
+        new AimdLimiter(initialConcurrency, maxConcurrency)
+      ));
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    if(millis <= 0) return;
+
+    try {
+      Thread.sleep(millis);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+
+      throw new InterruptedIOException("Interrupted while waiting for drive quota");
+    }
+  }
+
+  private record UserLimits(TokenBucket bucket, AimdLimiter concurrency) {
+  }
+
+  // holds up to a second worth of requests, taking more than there is reserves
+  // them ahead of time and waits until they would have been refilled
+  private static class TokenBucket {
+
+    private final double ratePerMilli;
+    private final double capacity;
+    private double tokens;
+    private long refilledAt = System.currentTimeMillis();
+
+    private TokenBucket(double ratePerSecond) {
+      this.ratePerMilli = ratePerSecond / 1000;
+      this.capacity = Math.max(1, ratePerSecond);
+      this.tokens = capacity;
+    }
+
+    private void take(int cost) throws InterruptedIOException {
+      long waitMillis;
+
+      synchronized(this) {
+        long now = System.currentTimeMillis();
+
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerMilli);
+        refilledAt = now;
+        tokens -= cost;
+
+        waitMillis = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / ratePerMilli);
+      }
+
+      sleep(waitMillis);
+    }
+
+  }
+
+  private static class AimdLimiter {
+
+    private final int max;
+    private double limit;
+    private int inUse;
+
+    private AimdLimiter(int initial, int max) {
+      this.max = max;
+      this.limit = Math.min(initial, max);
+    }
+
+    private synchronized void acquire() throws InterruptedIOException {
+      while(inUse >= (int) limit) {
+        try {
+          wait();
+        } catch(InterruptedException ex) {
+          Thread.currentThread().interrupt();
+
+          throw new InterruptedIOException("Interrupted while waiting for a drive request slot");
+        }
+      }
+
+      inUse++;
+    }
+
+    private synchronized void release() {
+      inUse--;
+      notifyAll();
+    }
+
+    // grows by about one for every limit's worth of successful requests
+    private synchronized void onSuccess() {
+      limit = Math.min(max, limit + 1 / limit);
+      notifyAll();
+    }
+
+    private synchronized void onRateLimited() {
+      limit = Math.max(1, limit / 2);
+    }
+
+    private synchronized int limit() {
+      return (int) limit;
+    }
+
+  }
+
+}
\ No newline at end of file
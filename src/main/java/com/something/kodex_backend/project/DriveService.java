@@ -1,48 +1,144 @@
 package com.something.kodex_backend.project;
 
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.FileContent;
+import com.google.api.client.googleapis.apache.v2.GoogleApacheHttpTransport;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.*;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonObjectParser;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.auth.http.HttpCredentialsAdapter;
 import com.google.auth.oauth2.AccessToken;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.something.kodex_backend.config.OAuthConfig;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class DriveService {
 
   private final OAuthConfig oAuthConfig;
+  private final DriveGovernor driveGovernor;
 
   private static final String MIME_TYPE_FOLDER = "application/vnd.google-apps.folder";
   private final static String APP_NAME = "KodeX";
 
+  // google accepts at most this many calls in one batch request
+  private static final int MAX_BATCH_SIZE = 100;
+
+  // folder ids or-ed into one listing query, keeps the query well under the url length limit
+  private static final int MAX_PARENTS_PER_QUERY = 40;
+
+  private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v3/files";
+  private static final String UPLOAD_FIELDS = "id,modifiedTime,md5Checksum,size";
+  // drive wants every chunk but the last to be a multiple of this
+  private static final int UPLOAD_CHUNK_GRANULARITY = 256 * 1024;
+  private static final long MAX_UPLOAD_BACKOFF_MILLIS = 30_000;
+  private static final int DOWNLOAD_BUFFER_BYTES = 256 * 1024;
+
+  // number of drive clients kept around, one per live access token
+  private static final int MAX_CACHED_CLIENTS = 256;
+
+  // files at least this big are uploaded in chunks through a resumable session
+  @Value("${kodex.sync.resumable-upload-threshold-bytes:8388608}")
+  private long resumableUploadThreshold;
+
+  // rounded down to a multiple of 256 KiB
+  @Value("${kodex.sync.upload-chunk-bytes:8388608}")
+  private int uploadChunkBytes;
+
+  // attempts per chunk before the upload gives up, the session is kept for the next push
+  @Value("${kodex.sync.upload-chunk-retries:5}")
+  private int uploadChunkRetries;
+
+  // direct buffers are expensive to allocate, so downloads reuse them
+  private final ConcurrentLinkedQueue<ByteBuffer> downloadBuffers = new ConcurrentLinkedQueue<> ();
+
+  // listing queries mostly wait on drive, DriveGovernor caps how many really run
+  private final ExecutorService listingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+  // one transport for every drive call, it pools connections per host so
+  // consecutive requests reuse the same tls connection (keep alive)
+  private final HttpTransport httpTransport = createHttpTransport();
+
+  // (accessToken, drive client using it), access tokens are handed out per user
+  // and reused until they're about to expire (see ProjectUtil) so this is
+  // effectively a client per user, a rotated token gets a new client and the
+  // old one falls off the end
+  private final Map<String, Drive> clients = new LinkedHashMap<> (16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Drive> eldest) {
+      return size() > MAX_CACHED_CLIENTS;
+    }
+  };
+
   public Drive buildDrive(String accessToken) {
+    synchronized(clients) {
+      return clients.computeIfAbsent(accessToken, this::createDrive);
+    }
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    synchronized(clients) {
+      clients.clear();
+    }
+
+    listingExecutor.shutdownNow();
+    httpTransport.shutdown();
+  }
+
+  private Drive createDrive(String accessToken) {
     GoogleCredentials googleCredentials = GoogleCredentials.create(new AccessToken(accessToken, null));
 
+    // building a client is cheap, it's just a wrapper around the shared transport
+    return new Drive.Builder(
+      httpTransport,
+      GsonFactory.getDefaultInstance(),
+      new HttpCredentialsAdapter(googleCredentials)
+    )
+    .setApplicationName(oAuthConfig.getApplicationName())
+    .build();
+  }
+
+  private static HttpTransport createHttpTransport() {
     try {
-      return new Drive.Builder(
-        GoogleNetHttpTransport.newTrustedTransport(),
-        GsonFactory.getDefaultInstance(),
-        new HttpCredentialsAdapter(googleCredentials)
-      )
-      .setApplicationName(oAuthConfig.getApplicationName())
-      .build();
+      return GoogleApacheHttpTransport.newTrustedTransport();
     } catch(GeneralSecurityException | IOException ex) {
       throw new RuntimeException(ex);
     }
@@ -58,11 +154,12 @@ public class DriveService {
       "and trashed=false";
 
 
-    FileList result = drive.files()
+    FileList result = driveGovernor.execute(accessToken, 1, () -> drive.files()
       .list()
       .setQ(query)
       .setFields("files(id)")
-      .execute();
+      .execute()
+    );
 
     // assume the first match is our root folder
     // if multiple exists then its user's fault :)
@@ -79,10 +176,11 @@ public class DriveService {
     // will look for this property
     metadata.setAppProperties(Map.of("type", "kodex_root", "createdBy", APP_NAME));
 
-    File rootFolder = drive.files()
+    File rootFolder = driveGovernor.execute(accessToken, 1, () -> drive.files()
       .create(metadata)
       .setFields("id")
-      .execute();
+      .execute()
+    );
 
     return rootFolder.getId();
   }
@@ -92,24 +190,156 @@ public class DriveService {
   public List<DriveFile> listFilesRecursively(
     String accessToken,
     String projectDriveId
+  ) throws IOException {
+    return listProjectTree(accessToken, projectDriveId).files();
+  }
+
+  // same as listFilesRecursively, but also returns the folders found on the way
+  // the tree is listed breadth first, the children of all folders at one depth are
+  // fetched together with "'a' in parents or 'b' in parents ..." queries, which run
+  // in parallel, so a deep tree costs a round trip per level instead of per folder
+  public DriveTree listProjectTree(
+    String accessToken,
+    String projectDriveId
   ) throws IOException {
     Drive drive = buildDrive(accessToken);
 
-    List<DriveFile> result = new ArrayList<> ();
+    List<DriveFile> files = new ArrayList<> ();
+    Map<String, String> folders = new HashMap<> ();
 
-    collectFiles(drive, projectDriveId, "", result);
+    // (folderId, its relative path) of the folders whose children are listed next
+    Map<String, String> level = Map.of(projectDriveId, "");
 
-    return result;
+    while(!level.isEmpty()) {
+      List<String> parentIds = new ArrayList<> (level.keySet());
+      List<Future<List<File>>> futures = new ArrayList<> ();
+
+      for(int start = 0; start < parentIds.size(); start += MAX_PARENTS_PER_QUERY) {
+        List<String> chunk = parentIds.subList(start, Math.min(start + MAX_PARENTS_PER_QUERY, parentIds.size()));
+
+        futures.add(listingExecutor.submit(() -> listChildren(accessToken, drive, chunk)));
+      }
+
+      Map<String, String> nextLevel = new HashMap<> ();
+
+      for(Future<List<File>> future : futures) {
+        for(File file : awaitListing(future)) {
+          // a file can have only one parent in drive
+          String parentPath = file.getParents() == null
+            ? null
+            : file.getParents().stream().map(level::get).filter(Objects::nonNull).findFirst().orElse(null);
+
+          if(parentPath == null) continue;
+
+          String relativePath = parentPath.isEmpty() ? file.getName() : parentPath + "/" + file.getName();
+
+          if(MIME_TYPE_FOLDER.equals(file.getMimeType())) {
+            folders.put(relativePath, file.getId());
+            nextLevel.put(file.getId(), relativePath);
+          } else {
+            files.add(new DriveFile(
+              file.getId(),
+              relativePath,
+              file.getMd5Checksum(),
+              file.getModifiedTime().getValue(),
+              file.getSize() != null ? file.getSize() : 0L
+            ));
+          }
+        }
+      }
+
+      level = nextLevel;
+    }
+
+    return new DriveTree(files, folders);
+  }
+
+  // the token to pass to listChanges to get everything that changes from now on
+  public String getStartPageToken(String accessToken) throws IOException {
+    Drive drive = buildDrive(accessToken);
+
+    return driveGovernor.execute(accessToken, 1, () -> drive.changes()
+      .getStartPageToken()
+      .execute()
+    ).getStartPageToken();
+  }
+
+  // everything that changed in the user's drive since pageToken
+  // with the drive.file scope this is limited to files made by this app
+  public DriveChanges listChanges(
+    String accessToken,
+    String pageToken
+  ) throws IOException {
+    Drive drive = buildDrive(accessToken);
+
+    List<DriveChange> changes = new ArrayList<> ();
+    String currentToken = pageToken;
+    String newStartPageToken = null;
+
+    while(currentToken != null) {
+      String token = currentToken;
+      ChangeList changeList = driveGovernor.execute(accessToken, 1, () -> drive.changes()
+        .list(token)
+        .setSpaces("drive")
+        .setIncludeRemoved(true)
+        .setPageSize(1000)
+        .setFields(
+          "nextPageToken, newStartPageToken, " +
+          "changes(fileId, removed, file(id, name, mimeType, parents, trashed, modifiedTime, md5Checksum, size, appProperties))"
+        )
+        .execute()
+      );
+
+      for(Change change : changeList.getChanges()) {
+        // shared drive changes have no file id, this app doesn't use them
+        if(change.getFileId() == null) continue;
+
+        File file = change.getFile();
+        boolean removed = Boolean.TRUE.equals(change.getRemoved())
+          || file == null
+          || Boolean.TRUE.equals(file.getTrashed());
+
+        if(removed) {
+          changes.add(new DriveChange(change.getFileId(), true, false, null, null, null, 0L, 0L));
+          continue;
+        }
+
+        // files which aren't made by us are never part of a project
+        if(file.getAppProperties() == null || !APP_NAME.equals(file.getAppProperties().get("createdBy"))) {
+          continue;
+        }
+
+        changes.add(new DriveChange(
+          file.getId(),
+          false,
+          MIME_TYPE_FOLDER.equals(file.getMimeType()),
+          file.getName(),
+          file.getParents() == null || file.getParents().isEmpty() ? null : file.getParents().getFirst(),
+          file.getMd5Checksum(),
+          file.getModifiedTime() != null ? file.getModifiedTime().getValue() : 0L,
+          file.getSize() != null ? file.getSize() : 0L
+        ));
+      }
+
+      currentToken = changeList.getNextPageToken();
+      newStartPageToken = changeList.getNewStartPageToken();
+    }
+
+    return new DriveChanges(changes, newStartPageToken);
   }
 
+  // big files go through a resumable session, resumeSessionUri is a session left
+  // over from an earlier attempt for the same content (or null), onSessionStarted
+  // is given the uri of every new session so the caller can keep it around
   public DriveFile uploadFile(
     String accessToken,
     Path localFile,
     String relativePath,
     String parentFolderId,
-    String googleFileId
+    String googleFileId,
+    String resumeSessionUri,
+    Consumer<String> onSessionStarted
   ) throws IOException {
-    Drive drive = buildDrive(accessToken);
     String mimeType = Files.probeContentType(localFile);
 
     // if mime type is not explicit then just consider
@@ -118,6 +348,14 @@ public class DriveService {
       mimeType = "application/octet-stream";
     }
 
+    if(Files.size(localFile) >= resumableUploadThreshold) {
+      return uploadResumable(
+        accessToken, localFile, relativePath, parentFolderId, googleFileId,
+        mimeType, resumeSessionUri, onSessionStarted
+      );
+    }
+
+    Drive drive = buildDrive(accessToken);
     FileContent fileContent = new FileContent(mimeType, localFile.toFile());
     File metadata = new File();
     File response;
@@ -130,26 +368,22 @@ public class DriveService {
       metadata.setParents(List.of(parentFolderId));
       metadata.setAppProperties(Map.of("createdBy", APP_NAME));
 
-      response = drive.files()
+      response = driveGovernor.execute(accessToken, 1, () -> drive.files()
         .create(metadata, fileContent)
-        .setFields("id, modifiedTime, md5Checksum")
-        .execute();
+        .setFields("id, modifiedTime, md5Checksum, size")
+        .execute()
+      );
     } else {
       // if file id is present, then it's an existing file
       // just update the content
-      response = drive.files()
+      response = driveGovernor.execute(accessToken, 1, () -> drive.files()
         .update(googleFileId, metadata, fileContent)
         .setFields("id, modifiedTime, md5Checksum, size")
-        .execute();
+        .execute()
+      );
     }
 
-    return new DriveFile(
-      response.getId(),
-      relativePath,
-      response.getMd5Checksum(),
-      response.getModifiedTime().getValue(),
-      response.getSize() != null ? response.getSize() : 0L
-    );
+    return toDriveFile(response, relativePath);
   }
 
   public void deleteFile(
@@ -160,12 +394,15 @@ public class DriveService {
     metadata.setTrashed(true);
 
     Drive drive = buildDrive(accessToken);
-    drive.files()
+    driveGovernor.execute(accessToken, 1, () -> drive.files()
       .update(googleFileId, metadata)
-      .execute();
+      .execute()
+    );
   }
 
-  public void downloadFile(
+  // streams the content straight into the file through a pooled direct buffer and
+  // hashes it on the way, returns the md5 (hex) of what was written
+  public String downloadFile(
     String accessToken,
     String fileId,
     Path destinationPath
@@ -174,9 +411,63 @@ public class DriveService {
 
     Files.createDirectories(destinationPath.getParent());
 
-    try (OutputStream outputStream = new FileOutputStream(destinationPath.toFile())) {
-      drive.files().get(fileId).executeMediaAndDownloadTo(outputStream);
+    // the whole transfer holds a request slot, a retry starts over from scratch
+    return driveGovernor.execute(accessToken, 1, () -> streamDownload(drive, fileId, destinationPath));
+  }
+
+  private String streamDownload(Drive drive, String fileId, Path destinationPath) throws IOException {
+    MessageDigest md5 = newMd5Digest();
+    ByteBuffer buffer = acquireDownloadBuffer();
+
+    try(
+      InputStream inputStream = drive.files().get(fileId).executeMediaAsInputStream();
+      ReadableByteChannel source = Channels.newChannel(inputStream);
+      FileChannel destination = FileChannel.open(
+        destinationPath,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+      )
+    ) {
+      while(source.read(buffer) != -1) {
+        buffer.flip();
+        md5.update(buffer.duplicate());
+
+        while(buffer.hasRemaining()) {
+          destination.write(buffer);
+        }
+
+        buffer.clear();
+      }
+    } finally {
+      releaseDownloadBuffer(buffer);
     }
+
+    return HexFormat.of().formatHex(md5.digest());
+  }
+
+  // trash many files with a few batch requests instead of one request per file
+  // every file gets its own future, so one failure only fails that file
+  public List<CompletableFuture<Void>> trashFiles(
+    String accessToken,
+    List<String> googleFileIds
+  ) {
+    Drive drive = buildDrive(accessToken);
+
+    File metadata = new File();
+    metadata.setTrashed(true);
+
+    List<CompletableFuture<File>> results = executeBatched(
+      accessToken,
+      drive,
+      googleFileIds,
+      (googleFileId, batch, callback) -> drive.files()
+        .update(googleFileId, metadata)
+        .setFields("id")
+        .queue(batch, callback)
+    );
+
+    return results.stream()
+      .map(result -> result.thenAccept(file -> {}))
+      .toList();
   }
 
   public String ensureFolderPath(
@@ -184,81 +475,601 @@ public class DriveService {
     String rootFolderId,
     String relativePath
   ) throws IOException {
+    int end = relativePath.lastIndexOf('/');
+    // the last part is the file itself hence skip it
+    String folderPath = end == -1 ? "" : relativePath.substring(0, end);
+
+    try {
+      return ensureFolderPaths(accessToken, rootFolderId, List.of(folderPath), Map.of()).get(folderPath).join();
+    } catch(CompletionException ex) {
+      if(ex.getCause() instanceof IOException ioException) throw ioException;
+
+      throw ex;
+    }
+  }
+
+  // finds (or creates) the drive folder for every given folder path, relative to rootFolderId
+  // folders are resolved one depth at a time: all lookups of a depth go out in one
+  // batch, then all the missing folders of that depth are created in another one
+  // knownFolders (relativePath, googleDriveId) are taken as is, without asking drive
+  // returns (folderPath, future of its drive id), "" is the root folder itself
+  public Map<String, CompletableFuture<String>> ensureFolderPaths(
+    String accessToken,
+    String rootFolderId,
+    Collection<String> folderPaths,
+    Map<String, String> knownFolders
+  ) {
     Drive drive = buildDrive(accessToken);
-    String[] parts = relativePath.split("/");
-    String currentParentId = rootFolderId;
 
-    // the last part is the file itself hence skip it
-    for(int i = 0; i < parts.length - 1; i++) {
-      currentParentId = getOrCreateSubfolder(drive, currentParentId, parts[i]);
+    Map<String, CompletableFuture<String>> result = new HashMap<> ();
+    result.put("", CompletableFuture.completedFuture(rootFolderId));
+
+    // (depth, folders at that depth), parents of every folder are included too
+    TreeMap<Integer, Set<String>> levels = new TreeMap<> ();
+    for(String folderPath : folderPaths) {
+      if(folderPath.isEmpty()) continue;
+
+      String[] parts = folderPath.split("/");
+      for(int i = 1; i <= parts.length; i++) {
+        String prefix = String.join("/", Arrays.copyOfRange(parts, 0, i));
+        String knownId = knownFolders.get(prefix);
+
+        if(knownId != null) {
+          result.put(prefix, CompletableFuture.completedFuture(knownId));
+          continue;
+        }
+
+        levels.computeIfAbsent(i, k -> new LinkedHashSet<> ()).add(prefix);
+      }
+    }
+
+    for(Set<String> level : levels.values()) {
+      List<FolderLookup> lookups = new ArrayList<> ();
+
+      for(String folderPath : level) {
+        CompletableFuture<String> parent = result.get(parentPath(folderPath));
+
+        // the parent couldn't be resolved, so neither can anything under it
+        if(parent.isCompletedExceptionally()) {
+          result.put(folderPath, parent);
+          continue;
+        }
+
+        lookups.add(new FolderLookup(folderPath, parent.join()));
+      }
+
+      List<CompletableFuture<FileList>> found = executeBatched(
+        accessToken,
+        drive,
+        lookups,
+        (lookup, batch, callback) -> drive.files()
+          .list()
+          .setQ(subfolderQuery(lookup.parentId(), fileName(lookup.folderPath())))
+          .setFields("files(id)")
+          .queue(batch, callback)
+      );
+
+      List<FolderLookup> toCreate = new ArrayList<> ();
+
+      for(int i = 0; i < lookups.size(); i++) {
+        FolderLookup lookup = lookups.get(i);
+        CompletableFuture<FileList> fileList = found.get(i);
+
+        if(fileList.isCompletedExceptionally()) {
+          result.put(lookup.folderPath(), fileList.thenApply(list -> null));
+        } else if(!fileList.join().getFiles().isEmpty()) {
+          result.put(
+            lookup.folderPath(),
+            CompletableFuture.completedFuture(fileList.join().getFiles().getFirst().getId())
+          );
+        } else {
+          toCreate.add(lookup);
+        }
+      }
+
+      List<CompletableFuture<File>> created = executeBatched(
+        accessToken,
+        drive,
+        toCreate,
+        (lookup, batch, callback) -> {
+          File folder = new File();
+          folder.setName(fileName(lookup.folderPath()));
+          folder.setParents(List.of(lookup.parentId()));
+          folder.setMimeType(MIME_TYPE_FOLDER);
+          folder.setAppProperties(Map.of("createdBy", APP_NAME));
+
+          drive.files()
+            .create(folder)
+            .setFields("id")
+            .queue(batch, callback);
+        }
+      );
+
+      for(int i = 0; i < toCreate.size(); i++) {
+        result.put(toCreate.get(i).folderPath(), created.get(i).thenApply(File::getId));
+      }
     }
 
-    return currentParentId;
+    return result;
   }
 
-  private String getOrCreateSubfolder(Drive drive, String parentId, String name) throws IOException {
-    String query = String.format(
+  // resumable upload protocol: the session is started with the metadata, then the
+  // content goes up in chunks, drive answers 308 with the range it has so far until
+  // the last chunk, which returns the file
+  // a failed chunk is retried with backoff after asking drive how much it really got
+  private DriveFile uploadResumable(
+    String accessToken,
+    Path localFile,
+    String relativePath,
+    String parentFolderId,
+    String googleFileId,
+    String mimeType,
+    String resumeSessionUri,
+    Consumer<String> onSessionStarted
+  ) throws IOException {
+    HttpRequestFactory requestFactory = uploadRequestFactory(accessToken);
+    long total = Files.size(localFile);
+    int chunkBytes = Math.max(UPLOAD_CHUNK_GRANULARITY, uploadChunkBytes / UPLOAD_CHUNK_GRANULARITY * UPLOAD_CHUNK_GRANULARITY);
+
+    String sessionUri = resumeSessionUri;
+    UploadStatus status = null;
+
+    if(sessionUri != null) {
+      try {
+        status = queryUploadStatus(accessToken, requestFactory, sessionUri, total);
+        log.info("Resuming upload of {} at {}/{} bytes", relativePath, status.offset(), total);
+      } catch(UploadSessionExpiredException ex) {
+        log.info("Upload session of {} expired, starting over", relativePath);
+        sessionUri = null;
+      }
+    }
+
+    if(sessionUri == null) {
+      sessionUri = startUploadSession(accessToken, requestFactory, localFile, parentFolderId, googleFileId, mimeType, total);
+      onSessionStarted.accept(sessionUri);
+      status = new UploadStatus(0L, null);
+    }
+
+    int failures = 0;
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkBytes, Math.max(total, 1)));
+
+    try(FileChannel channel = FileChannel.open(localFile, StandardOpenOption.READ)) {
+      while(status.file() == null) {
+        try {
+          status = status.offset() < 0
+            ? queryUploadStatus(accessToken, requestFactory, sessionUri, total)
+            : sendChunk(accessToken, requestFactory, sessionUri, channel, buffer, status.offset(), total);
+          failures = 0;
+
+          if(status.file() == null) {
+            log.info("Uploaded {}/{} bytes of {}", status.offset(), total, relativePath);
+          }
+        } catch(UploadSessionExpiredException ex) {
+          // drive forgot the session, nothing uploaded so far can be reused
+          sessionUri = startUploadSession(accessToken, requestFactory, localFile, parentFolderId, googleFileId, mimeType, total);
+          onSessionStarted.accept(sessionUri);
+          status = new UploadStatus(0L, null);
+        } catch(NonRetryableUploadException ex) {
+          throw ex;
+        } catch(IOException ex) {
+          if(++failures > uploadChunkRetries) throw ex;
+
+          long backoffMillis = Math.min(MAX_UPLOAD_BACKOFF_MILLIS, 1000L << (failures - 1));
+          log.warn(
+            "Upload of {} failed at {}/{} bytes, retrying in {}ms: {}",
+            relativePath, status.offset(), total, backoffMillis, ex.getMessage()
+          );
+          sleep(backoffMillis);
+
+          // unknown offset, ask drive before sending anything again
+          status = new UploadStatus(-1L, null);
+        }
+      }
+    }
+
+    return toDriveFile(status.file(), relativePath);
+  }
+
+  private String startUploadSession(
+    String accessToken,
+    HttpRequestFactory requestFactory,
+    Path localFile,
+    String parentFolderId,
+    String googleFileId,
+    String mimeType,
+    long total
+  ) throws IOException {
+    File metadata = new File();
+    HttpRequest request;
+
+    if(googleFileId == null) {
+      metadata.setName(localFile.getFileName().toString());
+      metadata.setParents(List.of(parentFolderId));
+      metadata.setAppProperties(Map.of("createdBy", APP_NAME));
+
+      request = requestFactory.buildPostRequest(
+        new GenericUrl(UPLOAD_URL + "?uploadType=resumable&fields=" + UPLOAD_FIELDS),
+        new JsonHttpContent(GsonFactory.getDefaultInstance(), metadata)
+      );
+    } else {
+      request = requestFactory.buildPatchRequest(
+        new GenericUrl(UPLOAD_URL + "/" + googleFileId + "?uploadType=resumable&fields=" + UPLOAD_FIELDS),
+        new JsonHttpContent(GsonFactory.getDefaultInstance(), metadata)
+      );
+    }
+
+    request.getHeaders()
+      .set("X-Upload-Content-Type", mimeType)
+      .set("X-Upload-Content-Length", total);
+
+    HttpResponse response = driveGovernor.execute(accessToken, 1, request::execute);
+
+    try {
+      String location = response.getHeaders().getLocation();
+
+      if(location == null) throw new IOException("Drive didn't return an upload session for " + localFile);
+
+      return location;
+    } finally {
+      response.disconnect();
+    }
+  }
+
+  private UploadStatus sendChunk(
+    String accessToken,
+    HttpRequestFactory requestFactory,
+    String sessionUri,
+    FileChannel channel,
+    ByteBuffer buffer,
+    long offset,
+    long total
+  ) throws IOException {
+    buffer.clear();
+    buffer.limit((int) Math.min(buffer.capacity(), total - offset));
+
+    while(buffer.hasRemaining()) {
+      if(channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new NonRetryableUploadException("File shrunk while uploading");
+      }
+    }
+
+    HttpRequest request = requestFactory.buildPutRequest(
+      new GenericUrl(sessionUri),
+      new ByteArrayContent(null, buffer.array(), 0, buffer.limit())
+    );
+
+    String contentRange = total == 0
+      ? "bytes */0"
+      : "bytes " + offset + "-" + (offset + buffer.limit() - 1) + "/" + total;
+    request.getHeaders().setContentRange(contentRange);
+
+    return readUploadStatus(accessToken, request);
+  }
+
+  // an empty put with an unknown range makes drive tell how much of the upload it has
+  private UploadStatus queryUploadStatus(
+    String accessToken,
+    HttpRequestFactory requestFactory,
+    String sessionUri,
+    long total
+  ) throws IOException {
+    HttpRequest request = requestFactory.buildPutRequest(new GenericUrl(sessionUri), new EmptyContent());
+    request.getHeaders().setContentRange("bytes */" + total);
+
+    return readUploadStatus(accessToken, request);
+  }
+
+  // no automatic retries here, the upload loop asks drive for the offset before sending again
+  private UploadStatus readUploadStatus(String accessToken, HttpRequest request) throws IOException {
+    request.setThrowExceptionOnExecuteError(false);
+    request.setFollowRedirects(false);
+
+    return driveGovernor.executeOnce(accessToken, 1, () -> {
+      HttpResponse response = request.execute();
+
+      try {
+        int statusCode = response.getStatusCode();
+
+        if(statusCode == 200 || statusCode == 201) {
+          return new UploadStatus(-1L, response.parseAs(File.class));
+        }
+
+        if(statusCode == 308) {
+          // "bytes=0-<last byte received>", missing if nothing was received yet
+          String range = response.getHeaders().getRange();
+
+          return new UploadStatus(
+            range == null ? 0L : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1,
+            null
+          );
+        }
+
+        if(statusCode == 404 || statusCode == 410) {
+          throw new UploadSessionExpiredException("Upload session expired");
+        }
+
+        HttpResponseException failure = new HttpResponseException.Builder(
+          statusCode, response.getStatusMessage(), response.getHeaders()
+        )
+        .setContent(response.parseAsString())
+        .build();
+
+        // rate limited or a server side problem, worth another try
+        if(statusCode == 408 || statusCode >= 500 || DriveGovernor.isRateLimited(failure)) {
+          throw failure;
+        }
+
+        throw new NonRetryableUploadException(failure.getMessage());
+      } finally {
+        response.disconnect();
+      }
+    });
+  }
+
+  private HttpRequestFactory uploadRequestFactory(String accessToken) {
+    GoogleCredentials googleCredentials = GoogleCredentials.create(new AccessToken(accessToken, null));
+    HttpCredentialsAdapter credentials = new HttpCredentialsAdapter(googleCredentials);
+
+    return httpTransport.createRequestFactory(request -> {
+      credentials.initialize(request);
+      request.setParser(new JsonObjectParser(GsonFactory.getDefaultInstance()));
+    });
+  }
+
+  private ByteBuffer acquireDownloadBuffer() {
+    ByteBuffer buffer = downloadBuffers.poll();
+
+    return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_BYTES);
+  }
+
+  private void releaseDownloadBuffer(ByteBuffer buffer) {
+    // the pool only grows as big as the number of concurrent downloads
+    downloadBuffers.offer(buffer);
+  }
+
+  private static MessageDigest newMd5Digest() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch(NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+
+      throw new InterruptedIOException("Interrupted while waiting to retry an upload");
+    }
+  }
+
+  private static DriveFile toDriveFile(File file, String relativePath) {
+    return new DriveFile(
+      file.getId(),
+      relativePath,
+      file.getMd5Checksum(),
+      file.getModifiedTime().getValue(),
+      file.getSize() != null ? file.getSize() : 0L
+    );
+  }
+
+  private static String subfolderQuery(String parentId, String name) {
+    return String.format(
       " '%s' in parents" +
       " and name='%s'" +
       " and mimeType='%s'" +
       " and appProperties has { key='createdBy' and value='%s' }" +
-      " and trashed=false", parentId, name, MIME_TYPE_FOLDER, APP_NAME);
+      " and trashed=false", parentId, escapeQuery(name), MIME_TYPE_FOLDER, APP_NAME);
+  }
 
-    FileList fileList = drive.files()
-      .list()
-      .setQ(query)
-      .setFields("files(id)")
-      .execute();
+  // quotes inside a query string have to be escaped
+  private static String escapeQuery(String value) {
+    return value.replace("\\", "\\\\").replace("'", "\\'");
+  }
 
-    if(!fileList.getFiles().isEmpty()) {
-      return fileList.getFiles().getFirst().getId();
-    }
+  private static String parentPath(String relativePath) {
+    int end = relativePath.lastIndexOf('/');
 
-    File folder = new File();
-    folder.setName(name);
-    folder.setParents(List.of(parentId));
-    folder.setMimeType(MIME_TYPE_FOLDER);
-    folder.setAppProperties(Map.of("createdBy", APP_NAME));
+    return end == -1 ? "" : relativePath.substring(0, end);
+  }
 
-    return drive.files()
-      .create(folder)
-      .setFields("id")
-      .execute()
-      .getId();
+  private static String fileName(String relativePath) {
+    return relativePath.substring(relativePath.lastIndexOf('/') + 1);
   }
 
-  private void collectFiles(
+  // queues one request per item into batch requests of at most MAX_BATCH_SIZE calls
+  // and executes them one after another, the returned futures are in the order of items
+  // and each one holds the result (or the error) of its own call
+  // only the calls drive rate limited are sent again, after a backoff
+  private <I, R> List<CompletableFuture<R>> executeBatched(
+    String accessToken,
     Drive drive,
-    String googleDriveId,
-    String currentPath,
-    List<DriveFile> result
-  ) throws IOException {
-    String query = String.format(
-      " '%s' in parents" +
-      " and appProperties has { key='createdBy' and value='%s' }" +
-      " and trashed=false", googleDriveId, APP_NAME);
+    List<I> items,
+    BatchQueuer<I, R> queuer
+  ) {
+    List<CompletableFuture<R>> futures = new ArrayList<> ();
 
-    FileList fileList = drive.files()
-      .list()
-      .setQ(query)
-      .setFields("files(id, name, mimeType, modifiedTime, md5Checksum, size)")
-      .execute();
+    for(int start = 0; start < items.size(); start += MAX_BATCH_SIZE) {
+      List<BatchCall<I, R>> pending = new ArrayList<> ();
+
+      for(I item : items.subList(start, Math.min(start + MAX_BATCH_SIZE, items.size()))) {
+        BatchCall<I, R> call = new BatchCall<> (item, new CompletableFuture<> ());
+        futures.add(call.future());
+        pending.add(call);
+      }
+
+      for(int attempt = 0; !pending.isEmpty(); attempt++) {
+        boolean lastAttempt = attempt >= driveGovernor.getMaxRetries();
+        List<BatchCall<I, R>> rateLimited = new ArrayList<> ();
+
+        executeBatch(accessToken, drive, pending, queuer, lastAttempt ? null : rateLimited);
+
+        if(rateLimited.isEmpty()) break;
+
+        driveGovernor.onRateLimited(accessToken);
+        log.warn("Drive rate limited {} calls of a batch, retrying them", rateLimited.size());
+
+        try {
+          driveGovernor.backOff(attempt);
+        } catch(InterruptedIOException ex) {
+          rateLimited.forEach(call -> call.future().completeExceptionally(ex));
+          break;
+        }
+
+        pending = rateLimited;
+      }
+    }
+
+    return futures;
+  }
+
+  // rate limited calls are put into rateLimited instead of failing, if it's given
+  private <I, R> void executeBatch(
+    String accessToken,
+    Drive drive,
+    List<BatchCall<I, R>> calls,
+    BatchQueuer<I, R> queuer,
+    List<BatchCall<I, R>> rateLimited
+  ) {
+    BatchRequest batch = drive.batch();
+    Set<BatchCall<I, R>> retried = Collections.newSetFromMap(new IdentityHashMap<> ());
+
+    for(BatchCall<I, R> call : calls) {
+      try {
+        queuer.queue(call.item(), batch, new JsonBatchCallback<> () {
+          @Override
+          public void onSuccess(R response, HttpHeaders responseHeaders) {
+            call.future().complete(response);
+          }
 
-    for(File file : fileList.getFiles()) {
-      String relativePath = currentPath.isEmpty() ? file.getName() : currentPath + "/" + file.getName();
+          @Override
+          public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+            if(rateLimited != null && DriveGovernor.isRateLimited(error)) {
+              retried.add(call);
+              return;
+            }
 
-      if(MIME_TYPE_FOLDER.equals(file.getMimeType())) {
-        collectFiles(drive, file.getId(), relativePath, result);
+            call.future().completeExceptionally(new IOException(
+              "Drive request failed for " + call.item() + ": " + error.getCode() + " " + error.getMessage()
+            ));
+          }
+        });
+      } catch(IOException ex) {
+        call.future().completeExceptionally(ex);
+      }
+    }
+
+    try {
+      // every call in a batch counts against the quota, a batch can't be executed
+      // twice so a rate limit on the batch itself is retried like the calls in it
+      if(batch.size() > 0) {
+        driveGovernor.executeOnce(accessToken, batch.size(), () -> {
+          batch.execute();
+          return null;
+        });
+      }
+    } catch(IOException ex) {
+      for(BatchCall<I, R> call : calls) {
+        if(call.future().isDone()) continue;
+
+        if(rateLimited != null && DriveGovernor.isRateLimited(ex)) {
+          retried.add(call);
+        } else {
+          // calls whose response was already parsed keep it
+          call.future().completeExceptionally(ex);
+        }
+      }
+    }
+
+    for(BatchCall<I, R> call : calls) {
+      if(retried.contains(call)) {
+        rateLimited.add(call);
       } else {
-        result.add(new DriveFile(
-          file.getId(),
-          relativePath,
-          file.getMd5Checksum(),
-          file.getModifiedTime().getValue(),
-          file.getSize() != null ? file.getSize() : 0L
-        ));
+        // a call the batch response didn't mention
+        call.future().completeExceptionally(new IOException("No response in batch for a drive request"));
       }
     }
   }
 
+  // every child of the given folders, following pages until the listing is complete
+  private List<File> listChildren(String accessToken, Drive drive, List<String> parentIds) throws IOException {
+    String parents = parentIds.stream()
+      .map(parentId -> String.format("'%s' in parents", parentId))
+      .collect(Collectors.joining(" or "));
+
+    String query = String.format(
+      " (%s)" +
+      " and appProperties has { key='createdBy' and value='%s' }" +
+      " and trashed=false", parents, APP_NAME);
+
+    List<File> result = new ArrayList<> ();
+    String pageToken = null;
+
+    do {
+      String token = pageToken;
+      FileList fileList = driveGovernor.execute(accessToken, 1, () -> drive.files()
+        .list()
+        .setQ(query)
+        .setPageSize(1000)
+        .setPageToken(token)
+        .setFields("nextPageToken, files(id, name, mimeType, parents, modifiedTime, md5Checksum, size)")
+        .execute()
+      );
+
+      result.addAll(fileList.getFiles());
+      pageToken = fileList.getNextPageToken();
+    } while(pageToken != null);
+
+    return result;
+  }
+
+  private static List<File> awaitListing(Future<List<File>> future) throws IOException {
+    try {
+      return future.get();
+    } catch(ExecutionException ex) {
+      if(ex.getCause() instanceof IOException ioException) throw ioException;
+
+      throw new RuntimeException(ex.getCause());
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+
+      throw new IOException("Interrupted while listing drive folders", ex);
+    }
+  }
+
+  @FunctionalInterface
+  private interface BatchQueuer<I, R> {
+
+    void queue(I item, BatchRequest batch, JsonBatchCallback<R> callback) throws IOException;
+
+  }
+
+  private record FolderLookup(String folderPath, String parentId) {
+  }
+
+  private record BatchCall<I, R>(I item, CompletableFuture<R> future) {
+  }
+
+  // offset is the next byte drive expects, -1 if unknown, file is set once the upload is done
+  private record UploadStatus(long offset, File file) {
+  }
+
+  private static class UploadSessionExpiredException extends IOException {
+
+    UploadSessionExpiredException(String message) {
+      super(message);
+    }
+
+  }
+
+  private static class NonRetryableUploadException extends IOException {
+
+    NonRetryableUploadException(String message) {
+      super(message);
+    }
+
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.something.kodex_backend.project;
+
+import java.util.List;
+import java.util.Map;
+
+public record DriveTree(
+  List<DriveFile> files,
+  // (relativePath, googleDriveId) of every folder under the project
+  Map<String, String> folders
+) {
+}
@@ -0,0 +1,95 @@
+package com.something.kodex_backend.project;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// stat of every file as it was when it was last synced
+// a file whose size, times and inode are all the same wasn't written since,
+// so a push skips it without opening it, even if its mtime is newer than drive's
+@Service
+public class FileFingerprints {
+
+  // (projectId, (relativePath, fingerprint))
+  private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, FileFingerprint>> index =
+    new ConcurrentHashMap<> ();
+
+  public Optional<FileFingerprint> get(Integer projectId, String relativePath) {
+    ConcurrentHashMap<String, FileFingerprint> projectIndex = index.get(projectId);
+
+    if(projectIndex == null) return Optional.empty();
+
+    return Optional.ofNullable(projectIndex.get(relativePath));
+  }
+
+  public void put(Integer projectId, String relativePath, FileFingerprint fingerprint) {
+    index.computeIfAbsent(projectId, k -> new ConcurrentHashMap<> ())
+      .put(relativePath, fingerprint);
+  }
+
+  public void remove(Integer projectId, String relativePath) {
+    ConcurrentHashMap<String, FileFingerprint> projectIndex = index.get(projectId);
+
+    if(projectIndex != null) projectIndex.remove(relativePath);
+  }
+
+  public void clearProject(Integer projectId) {
+    index.remove(projectId);
+  }
+
+  // one stat call, the content hash is filled in by whoever hashed the file
+  public static FileFingerprint stat(Path file) throws IOException {
+    try {
+      Map<String, Object> attributes = Files.readAttributes(file, "unix:size,lastModifiedTime,ino,ctime");
+
+      return new FileFingerprint(
+        (Long) attributes.get("size"),
+        toNanos((FileTime) attributes.get("lastModifiedTime")),
+        (Long) attributes.get("ino"),
+        toNanos((FileTime) attributes.get("ctime")),
+        null
+      );
+    } catch(UnsupportedOperationException ex) {
+      // no unix view, size and mtime have to do
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      long modifiedNanos = toNanos(attributes.lastModifiedTime());
+
+      return new FileFingerprint(attributes.size(), modifiedNanos, 0L, modifiedNanos, null);
+    }
+  }
+
+  private static long toNanos(FileTime time) {
+    return time.to(TimeUnit.NANOSECONDS);
+  }
+
+  // contentHash is the xxh64 of the synced content, null if it wasn't hashed
+  public record FileFingerprint(
+    long size,
+    long modifiedNanos,
+    long inode,
+    long changedNanos,
+    Long contentHash
+  ) {
+
+    public boolean sameFile(FileFingerprint other) {
+      return size == other.size
+        && modifiedNanos == other.modifiedNanos
+        && inode == other.inode
+        && changedNanos == other.changedNanos;
+    }
+
+    public FileFingerprint withContentHash(long hash) {
+      return new FileFingerprint(size, modifiedNanos, inode, changedNanos, hash);
+    }
+
+  }
+
+}
\ No newline at end of file
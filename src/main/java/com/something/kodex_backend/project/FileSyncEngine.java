@@ -2,18 +2,29 @@ package com.something.kodex_backend.project;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.DigestUtils;
 import org.springframework.util.FileSystemUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @Service
@@ -21,248 +32,1751 @@ import java.util.stream.Stream;
 @RequiredArgsConstructor
 public class FileSyncEngine {
   private static final Path LOCAL_ROOT = Path.of("/tmp/kodex/projects");
-  private static final int THREAD_POOL_SIZE = 8;
+  private static final String EMPTY_MD5 = "d41d8cd98f00b204e9800998ecf8427e";
+
+  // while making container everything is set to read only
+  // A little hack to allow user to modify anything in project folder only
+  private static final Set<PosixFilePermission> PERMISSIONS = PosixFilePermissions.fromString("rwxrwxrwx");
 
   private final DriveService driveService;
   private final SyncState syncState;
   private final PathIndex pathIndex;
-  private final ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+  private final BlobStore blobStore;
+  private final ChunkManifests chunkManifests;
+  private final FileFingerprints fileFingerprints;
+  private final ProjectWatcher projectWatcher;
+  private final IgnoreRules ignoreRules;
+  // every file transfer gets its own virtual thread, how many actually run at once
+  // is limited per project and per user with the semaphores below
+  private final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
   private final ProjectUtil projectUtil;
+  // (projectId, io tasks of that project allowed in flight)
+  private final ConcurrentHashMap<Integer, Semaphore> projectPermits = new ConcurrentHashMap<> ();
+  // (userId, io tasks allowed in flight across all projects of that user)
+  private final ConcurrentHashMap<Integer, Semaphore> userPermits = new ConcurrentHashMap<> ();
+  // (projectId, userId of its owner)
+  private final ConcurrentHashMap<Integer, Integer> projectOwners = new ConcurrentHashMap<> ();
+  // (projectId, tasks of the pull in progress), a project closed mid pull cancels them
+  private final ConcurrentHashMap<Integer, PullTasks> runningPulls = new ConcurrentHashMap<> ();
+  // (userId, big uploads allowed in flight across all projects of that user)
+  private final ConcurrentHashMap<Integer, Semaphore> backgroundPermits = new ConcurrentHashMap<> ();
+  // (projectId, (relativePath, big upload running in the background))
+  private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, BackgroundUpload>> backgroundUploads =
+    new ConcurrentHashMap<> ();
+  // (projectId, paths saved by the user which weren't pushed yet), these go first
+  private final ConcurrentHashMap<Integer, Set<String>> importantPaths = new ConcurrentHashMap<> ();
+  // (projectId, (relativePath, folder currently being looked up or created on drive))
+  private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, CompletableFuture<String>>> pendingFolders =
+    new ConcurrentHashMap<> ();
+  // (projectId, (relativePath, drive file of a placeholder which wasn't downloaded yet))
+  private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Placeholder>> placeholders =
+    new ConcurrentHashMap<> ();
+  // (projectId, (relativePath, download of a placeholder in progress))
+  private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, CompletableFuture<Void>>> hydrations =
+    new ConcurrentHashMap<> ();
+  // (projectId, background downloads of its placeholders)
+  private final ConcurrentHashMap<Integer, List<Future<Void>>> prefetches = new ConcurrentHashMap<> ();
+  // (projectId, when drive's changes were last brought in before a push)
+  private final ConcurrentHashMap<Integer, Long> remoteChangesPulledAt = new ConcurrentHashMap<> ();
+
+  @Value("${kodex.sync.project-io-concurrency:8}")
+  private int projectIoConcurrency;
+
+  @Value("${kodex.sync.user-io-concurrency:16}")
+  private int userIoConcurrency;
+
+  // files at least this big are chunked while hashed, to see how much of them changed
+  @Value("${kodex.sync.delta-threshold-bytes:4194304}")
+  private long deltaThresholdBytes;
+
+  // files at least this big are uploaded in the background, the push doesn't wait for them
+  @Value("${kodex.sync.background-upload-threshold-bytes:16777216}")
+  private long backgroundUploadThresholdBytes;
+
+  @Value("${kodex.sync.background-upload-concurrency:2}")
+  private int backgroundUploadConcurrency;
+
+  // text files up to this size are merged when they changed on drive and locally,
+  // their last synced content is kept in the blob store as the base of that merge
+  @Value("${kodex.sync.merge-max-bytes:1048576}")
+  private long mergeMaxBytes;
+
+  // a full pull of a project with at least this many files, or this many bytes, only creates
+  // empty placeholders and returns, the content is downloaded in the background afterwards
+  // (or right away when a file is read before that)
+  @Value("${kodex.sync.lazy-open-min-files:2000}")
+  private int lazyOpenMinFiles;
+
+  @Value("${kodex.sync.lazy-open-min-bytes:268435456}")
+  private long lazyOpenMinBytes;
+
+  // a push asks drive for its changes first, at most this often per project
+  @Value("${kodex.sync.remote-changes-interval-millis:5000}")
+  private long remoteChangesIntervalMillis;
+
+  // this function will pull the files inside the project to local folder
+  public void pull(
+    String accessToken,
+    Integer projectId,
+    String projectDriveId
+  ) throws IOException, InterruptedException, ExecutionException {
+    PullTasks pullTasks = new PullTasks();
+    runningPulls.put(projectId, pullTasks);
+
+    try {
+      pullProject(accessToken, projectId, projectDriveId, pullTasks);
+    } finally {
+      runningPulls.remove(projectId, pullTasks);
+    }
+
+    // placeholders of this pull, or left over from the last time the project was open
+    startHydration(projectId);
+  }
+
+  // stops a pull in progress, the pull fails with a CancellationException
+  // returns false if the project isn't being pulled
+  public boolean cancelPull(Integer projectId) {
+    PullTasks pullTasks = runningPulls.get(projectId);
+
+    if(pullTasks == null) return false;
+
+    log.info("Cancelling pull of project {}", projectId);
+    pullTasks.cancel();
+
+    return true;
+  }
+
+  private void pullProject(
+    String accessToken,
+    Integer projectId,
+    String projectDriveId,
+    PullTasks pullTasks
+  ) throws IOException, InterruptedException, ExecutionException {
+    log.info("Pulling for project {}", projectId);
+
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+
+    // a project synced before, whose local folder is still around,
+    // only needs whatever changed on drive since that sync
+    if(syncState.restoreProject(projectId) && Files.exists(projectRoot)) {
+      Optional<String> pageToken = syncState.getPageToken(projectId);
+
+      if(pageToken.isPresent()) {
+        try {
+          pullChanges(accessToken, projectId, projectDriveId, pageToken.get());
+
+          return;
+        } catch(CancellationException ex) {
+          throw ex;
+        } catch(IOException | RuntimeException ex) {
+          // e.g. the token expired, or a folder was moved around
+          log.warn("Incremental pull failed for project {}, doing a full pull", projectId, ex);
+        }
+      }
+    }
+
+    // taken before listing so nothing changed during the listing is missed next time
+    String startPageToken = driveService.getStartPageToken(accessToken);
+
+    // fetch all file metadata from drive
+    // metadata is fetched first to allow for multithreaded download later on
+    DriveTree driveTree = driveService.listProjectTree(accessToken, projectDriveId);
+    List<DriveFile> driveFiles = driveTree.files();
+
+    pullTasks.checkCancelled();
+
+    // create all required directories first
+    Files.createDirectories(projectRoot);
+
+    Files.setPosixFilePermissions(projectRoot, PERMISSIONS);
+
+    // (drive version, last synced version) of files changed on drive which have local edits too
+    Map<DriveFile, DriveFile> conflicts = new LinkedHashMap<> ();
+    List<DriveFile> toDownload = reconcileWithPersistedState(projectId, projectRoot, driveFiles, conflicts);
+
+    // whatever the ignore rules of the project rule out isn't pulled at all
+    ignoreRules.invalidate(projectRoot);
+    toDownload = downloadIgnoreFiles(accessToken, projectId, projectRoot, toDownload);
+
+    // merged or kept next to the local file like in an incremental pull, the next full push uploads them
+    for(Map.Entry<DriveFile, DriveFile> conflict : conflicts.entrySet()) {
+      if(ignoreRules.isIgnored(projectRoot, conflict.getKey().relativePath(), false)) continue;
+
+      resolveConflict(accessToken, projectId, projectRoot, conflict.getKey(), conflict.getValue());
+    }
+
+    long downloadBytes = toDownload.stream().mapToLong(DriveFile::size).sum();
+
+    if(toDownload.size() >= lazyOpenMinFiles || downloadBytes >= lazyOpenMinBytes) {
+      log.info("Project {} is big ({} files, {} bytes), opening it lazily", projectId, toDownload.size(), downloadBytes);
+
+      // files with a local copy (unchanged since the last sync, edited ones are conflicts)
+      // are downloaded over as usual, placeholders only go where there's nothing yet
+      Map<Boolean, List<DriveFile>> byLocalCopy = toDownload.stream()
+        .collect(Collectors.partitioningBy(driveFile -> Files.exists(projectRoot.resolve(driveFile.relativePath()))));
+
+      createPlaceholders(projectId, projectRoot, byLocalCopy.get(false));
+      downloadAll(accessToken, projectId, projectRoot, byLocalCopy.get(true));
+    } else {
+      downloadAll(accessToken, projectId, projectRoot, toDownload);
+    }
+
+    // remember folder ids, the changes feed refers to parents by id
+    Map<String, String> knownFolders = syncState.getFolderSnapshot(projectId);
+    for(String folderPath : knownFolders.keySet()) {
+      if(!driveTree.folders().containsKey(folderPath)) syncState.removeFolder(projectId, folderPath);
+    }
+    driveTree.folders().forEach((folderPath, folderId) -> syncState.putFolder(projectId, folderPath, folderId));
+
+    syncState.putPageToken(projectId, startPageToken);
+
+    indexProject(projectId, projectRoot);
+
+    // recursively change file permissions for all folders and files
+    // inside project root
+    for(Path path : ignoreRules.walk(projectRoot, projectRoot)) {
+      Files.setPosixFilePermissions(path, PERMISSIONS);
+    }
+
+    log.info(
+      "Pull finished for project {}: {} files, {} downloaded",
+      projectId, driveFiles.size(), toDownload.size()
+    );
+  }
+
+  // applies the drive changes feed since pageToken to the local folder
+  // the feed is shared by the whole drive, so changes outside of this project show up too
+  // and are skipped because their parents can't be resolved to a folder of this project
+  // returns the paths written while resolving conflicts, they have to be pushed
+  private List<String> pullChanges(
+    String accessToken,
+    Integer projectId,
+    String projectDriveId,
+    String pageToken
+  ) throws IOException, InterruptedException {
+    DriveChanges driveChanges = driveService.listChanges(accessToken, pageToken);
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+
+    Map<String, DriveFile> files = syncState.getProjectSnapshot(projectId);
+
+    // reverse lookups, the feed only talks in drive ids
+    Map<String, String> filePathById = new HashMap<> ();
+    files.values().forEach(file -> filePathById.put(file.googleDriveId(), file.relativePath()));
+
+    Map<String, String> folderPathById = new HashMap<> ();
+    syncState.getFolderSnapshot(projectId).forEach((path, id) -> folderPathById.put(id, path));
+    folderPathById.put(projectDriveId, "");
+
+    // a file can show up more than once, only its latest state matters
+    Map<String, DriveChange> latest = new LinkedHashMap<> ();
+    driveChanges.changes().forEach(change -> latest.put(change.googleDriveId(), change));
+
+    Set<String> removedPaths = new HashSet<> ();
+    Set<String> createdPaths = new HashSet<> ();
+    List<DriveFile> toDownload = new ArrayList<> ();
+    // (drive version, last synced version or null) of files changed on both sides
+    Map<DriveFile, DriveFile> conflicts = new LinkedHashMap<> ();
+    Map<String, BackgroundUpload> runningUploads = backgroundUploads.getOrDefault(projectId, new ConcurrentHashMap<> ());
+
+    // removals first, so a file replaced by a new one at the same path ends up right
+    for(DriveChange change : latest.values()) {
+      if(!change.removed()) continue;
+
+      String filePath = filePathById.remove(change.googleDriveId());
+      if(filePath != null) {
+        removeLocalFile(projectId, projectRoot, files.get(filePath));
+        removedPaths.add(filePath);
+
+        continue;
+      }
+
+      String folderPath = folderPathById.get(change.googleDriveId());
+      if(folderPath != null && !folderPath.isEmpty()) {
+        removeLocalFolder(projectId, projectRoot, folderPath, files);
+        folderPathById.values().removeIf(path -> path.equals(folderPath) || path.startsWith(folderPath + "/"));
+        removedPaths.add(folderPath);
+      }
+    }
+
+    // new folders, a folder can be listed before its own parent so loop until nothing resolves
+    List<DriveChange> folderChanges = new ArrayList<> (
+      latest.values().stream().filter(change -> !change.removed() && change.folder()).toList()
+    );
+
+    boolean progress = true;
+    while(progress) {
+      progress = false;
+
+      Iterator<DriveChange> iterator = folderChanges.iterator();
+      while(iterator.hasNext()) {
+        DriveChange change = iterator.next();
+        String parentPath = folderPathById.get(change.parentId());
+
+        if(parentPath == null) continue;
+
+        String path = childPath(parentPath, change.name());
+        String oldPath = folderPathById.get(change.googleDriveId());
+
+        // moving folders around would mean moving whole subtrees, leave it to a full pull
+        if(oldPath != null && !oldPath.equals(path)) {
+          throw new IllegalStateException("Folder moved on drive: " + oldPath + " -> " + path);
+        }
+
+        iterator.remove();
+        progress = true;
+
+        if(oldPath == null) {
+          folderPathById.put(change.googleDriveId(), path);
+          syncState.putFolder(projectId, path, change.googleDriveId());
+
+          if(!ignoreRules.isIgnored(projectRoot, path, true)) {
+            Files.createDirectories(projectRoot.resolve(path));
+            createdPaths.add(path);
+          }
+        }
+      }
+    }
+
+    // leftovers aren't part of this project, unless we knew them (i.e. moved out of it)
+    for(DriveChange change : folderChanges) {
+      if(folderPathById.containsKey(change.googleDriveId())) {
+        throw new IllegalStateException("Folder moved out of project: " + change.googleDriveId());
+      }
+    }
+
+    for(DriveChange change : latest.values()) {
+      if(change.removed() || change.folder()) continue;
+
+      String parentPath = folderPathById.get(change.parentId());
+      String oldPath = filePathById.get(change.googleDriveId());
+
+      if(parentPath == null) {
+        // moved out of this project (or was never part of it)
+        if(oldPath != null) {
+          removeLocalFile(projectId, projectRoot, files.get(oldPath));
+          removedPaths.add(oldPath);
+        }
+
+        continue;
+      }
+
+      String path = childPath(parentPath, change.name());
+
+      if(oldPath != null && !oldPath.equals(path)) {
+        // renamed or moved inside the project, fetched again under the new path
+        removeLocalFile(projectId, projectRoot, files.get(oldPath));
+        removedPaths.add(oldPath);
+      } else if(oldPath != null && Objects.equals(files.get(oldPath).md5Checksum(), change.md5Checksum())) {
+        // our own push coming back, or a metadata only change
+        continue;
+      }
+
+      if(ignoreRules.isIgnored(projectRoot, path, false)) continue;
+
+      // most likely our own upload, which finished on drive but not here yet
+      if(runningUploads.containsKey(path)) continue;
+
+      DriveFile remote = new DriveFile(
+        change.googleDriveId(), path, change.md5Checksum(), change.modifiedAt(), change.size()
+      );
+
+      // changed here too since the last sync (or created on both sides), don't overwrite it
+      Path localPath = projectRoot.resolve(path);
+      DriveFile base = oldPath != null && oldPath.equals(path) ? files.get(oldPath) : null;
+
+      if(Files.isRegularFile(localPath)
+        && !isUnhydrated(projectId, path, localPath)
+        && (base == null || isLocallyModified(projectId, localPath, base))) {
+        conflicts.put(remote, base);
+        continue;
+      }
+
+      toDownload.add(remote);
+      createdPaths.add(path);
+    }
+
+    downloadAll(accessToken, projectId, projectRoot, toDownload);
+
+    List<String> conflictPaths = new ArrayList<> ();
+    for(Map.Entry<DriveFile, DriveFile> conflict : conflicts.entrySet()) {
+      conflictPaths.addAll(resolveConflict(accessToken, projectId, projectRoot, conflict.getKey(), conflict.getValue()));
+    }
+
+    createdPaths.addAll(conflictPaths);
+
+    if(toDownload.stream().anyMatch(driveFile -> IgnoreRules.isIgnoreFile(driveFile.relativePath()))) {
+      ignoreRules.invalidate(projectRoot);
+    }
+
+    for(String createdPath : createdPaths) {
+      // the file and every folder up to project root
+      for(Path path = projectRoot.resolve(createdPath); !path.equals(projectRoot); path = path.getParent()) {
+        Files.setPosixFilePermissions(path, PERMISSIONS);
+      }
+    }
+
+    if(pathIndex.hasProject(projectId)) {
+      removedPaths.forEach(path -> pathIndex.removePath(projectId, path));
+
+      for(String createdPath : createdPaths) {
+        for(Path path = Path.of(createdPath); path != null; path = path.getParent()) {
+          pathIndex.put(projectId, path.toString());
+        }
+      }
+    } else {
+      indexProject(projectId, projectRoot);
+    }
+
+    syncState.putPageToken(projectId, driveChanges.newStartPageToken());
+
+    log.info(
+      "Incremental pull finished for project {}: {} changes, {} downloaded, {} removed, {} conflicts",
+      projectId, latest.size(), toDownload.size(), removedPaths.size(), conflicts.size()
+    );
+
+    return conflictPaths;
+  }
+
+  // a file changed on drive and locally since the last sync
+  // text files are merged three way against the last synced content from the blob store,
+  // otherwise (or if both changed the same lines) the local file is left as it is and
+  // the drive version is saved next to it as a conflict copy
+  // either way drive is overwritten by the local file with the next push
+  private List<String> resolveConflict(
+    String accessToken,
+    Integer projectId,
+    Path projectRoot,
+    DriveFile remote,
+    DriveFile base
+  ) throws IOException {
+    Path localPath = projectRoot.resolve(remote.relativePath());
+    Path remoteCopy = tempFileFor(localPath);
+
+    try {
+      String remoteMd5;
+
+      if(remote.size() == 0L) {
+        remoteMd5 = EMPTY_MD5;
+      } else if(blobStore.copyTo(remote.md5Checksum(), remoteCopy)) {
+        remoteMd5 = remote.md5Checksum();
+      } else {
+        remoteMd5 = driveService.downloadFile(accessToken, remote.googleDriveId(), remoteCopy);
+      }
+
+      blobStore.add(remoteMd5, remoteCopy);
+
+      List<String> written = new ArrayList<> ();
+
+      if(computeMd5Hash(localPath).equals(remoteMd5)) {
+        // both sides made the same change
+        log.info("{} of project {} changed the same way on drive and locally", remote.relativePath(), projectId);
+      } else {
+        Optional<String> merged = base != null
+          ? mergeText(base.md5Checksum(), localPath, remoteCopy)
+          : Optional.empty();
+
+        if(merged.isPresent()) {
+          Files.writeString(localPath, merged.get(), StandardCharsets.UTF_8);
+          log.info("Merged changes from drive into {} of project {}", remote.relativePath(), projectId);
+        } else {
+          Path conflictCopy = conflictCopyPath(localPath);
+          Files.copy(remoteCopy, conflictCopy);
+          Files.setPosixFilePermissions(conflictCopy, PERMISSIONS);
+
+          written.add(projectRoot.relativize(conflictCopy).toString());
+          log.warn(
+            "{} of project {} changed on drive and locally, drive version kept as {}",
+            remote.relativePath(), projectId, conflictCopy.getFileName()
+          );
+        }
+
+        written.add(remote.relativePath());
+      }
+
+      // the drive version is the new base, a modified time of 0 makes the next push look at the file
+      syncState.put(projectId, new DriveFile(
+        remote.googleDriveId(), remote.relativePath(), remoteMd5, 0L, remote.size()
+      ));
+      fileFingerprints.remove(projectId, remote.relativePath());
+
+      return written;
+    } finally {
+      Files.deleteIfExists(remoteCopy);
+    }
+  }
+
+  // empty if a file isn't text, is too big, its base isn't in the blob store any more,
+  // or both sides changed the same lines
+  private Optional<String> mergeText(String baseMd5, Path localPath, Path remoteCopy) throws IOException {
+    if(Files.size(localPath) > mergeMaxBytes || Files.size(remoteCopy) > mergeMaxBytes) return Optional.empty();
+
+    Path baseCopy = tempFileFor(localPath);
+
+    try {
+      if(!EMPTY_MD5.equals(baseMd5) && !blobStore.copyTo(baseMd5, baseCopy)) return Optional.empty();
+
+      Optional<String> base = readText(baseCopy);
+      Optional<String> local = readText(localPath);
+      Optional<String> remote = readText(remoteCopy);
+
+      if(base.isEmpty() || local.isEmpty() || remote.isEmpty()) return Optional.empty();
+
+      return ThreeWayMerge.merge(base.get(), local.get(), remote.get());
+    } finally {
+      Files.deleteIfExists(baseCopy);
+    }
+  }
+
+  // empty for anything which doesn't look like utf-8 text
+  private static Optional<String> readText(Path path) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+
+    for(byte b : bytes) {
+      if(b == 0) return Optional.empty();
+    }
+
+    try {
+      return Optional.of(StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString());
+    } catch(CharacterCodingException ex) {
+      return Optional.empty();
+    }
+  }
+
+  // "name (drive conflict 20261017-153000).ext", next to the local file
+  // next to the file it's for, so moving it over that file is an atomic rename on the same
+  // file system, its name keeps pushes and the watcher away from it until then
+  private static Path tempFileFor(Path localPath) throws IOException {
+    return Files.createTempFile(localPath.getParent(), IgnoreRules.TEMP_PREFIX, null);
+  }
+
+  private static Path conflictCopyPath(Path localPath) {
+    String name = localPath.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    String stem = dot > 0 ? name.substring(0, dot) : name;
+    String extension = dot > 0 ? name.substring(dot) : "";
+    String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+
+    Path copy = localPath.resolveSibling(stem + " (drive conflict " + timestamp + ")" + extension);
+
+    for(int i = 2; Files.exists(copy); i++) {
+      copy = localPath.resolveSibling(stem + " (drive conflict " + timestamp + " " + i + ")" + extension);
+    }
+
+    return copy;
+  }
+
+  // downloads the ignore files in toDownload, shallowest first, each level filtered by the
+  // rules above it, and returns the rest of toDownload without what the rules rule out
+  private List<DriveFile> downloadIgnoreFiles(
+    String accessToken,
+    Integer projectId,
+    Path projectRoot,
+    List<DriveFile> toDownload
+  ) throws IOException, InterruptedException {
+    TreeMap<Long, List<DriveFile>> ignoreFilesByDepth = new TreeMap<> ();
+    List<DriveFile> rest = new ArrayList<> ();
+
+    for(DriveFile driveFile : toDownload) {
+      if(IgnoreRules.isIgnoreFile(driveFile.relativePath())) {
+        long depth = driveFile.relativePath().chars().filter(c -> c == '/').count();
+        ignoreFilesByDepth.computeIfAbsent(depth, k -> new ArrayList<> ()).add(driveFile);
+      } else {
+        rest.add(driveFile);
+      }
+    }
+
+    for(List<DriveFile> level : ignoreFilesByDepth.values()) {
+      List<DriveFile> wanted = level.stream()
+        .filter(driveFile -> !ignoreRules.isIgnored(projectRoot, driveFile.relativePath(), false))
+        .toList();
+
+      downloadAll(accessToken, projectId, projectRoot, wanted);
+      ignoreRules.invalidate(projectRoot);
+    }
+
+    return rest.stream()
+      .filter(driveFile -> !ignoreRules.isIgnored(projectRoot, driveFile.relativePath(), false))
+      .toList();
+  }
+
+  private void downloadAll(
+    String accessToken,
+    Integer projectId,
+    Path projectRoot,
+    List<DriveFile> toDownload
+  ) throws IOException, InterruptedException {
+    for(DriveFile driveFile : toDownload) {
+      Path localPath = projectRoot.resolve(driveFile.relativePath());
+      Files.createDirectories(localPath.getParent());
+    }
+
+    // download files parallelly
+    List<Callable<DriveFile>> tasks = toDownload.stream()
+      .map(driveFile -> (Callable<DriveFile>) () -> downloadOne(accessToken, projectId, projectRoot, driveFile))
+      .toList();
+
+    List<Future<DriveFile>> futures = submitAll(projectId, tasks);
+    List<String> errors = collectErrors(futures);
+
+    if(!errors.isEmpty()) {
+      throw new RuntimeException("Pull failed for some files:\n" + String.join("\n", errors));
+    }
+  }
+
+  private DriveFile downloadOne(
+    String accessToken,
+    Integer projectId,
+    Path projectRoot,
+    DriveFile driveFile
+  ) throws IOException {
+    Path localPath = projectRoot.resolve(driveFile.relativePath());
+
+    // drive doesn't allow download for empty files
+    // so, just create them locally
+    // a leftover local copy might exist when state was restored, so truncate instead of createFile
+    String md5Checksum;
+    long contentHash;
+
+    if(driveFile.size() == 0L) {
+      Files
+        .newOutputStream(localPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+        .close();
+      Files.setPosixFilePermissions(localPath, PERMISSIONS);
+      md5Checksum = EMPTY_MD5;
+      contentHash = XxHash64.hash(localPath);
+    } else {
+      // fetched aside and moved into place, a pull failing or cancelled midway
+      // never leaves a half written file behind to look like a local edit next time
+      Path download = tempFileFor(localPath);
+
+      try {
+        if(blobStore.copyTo(driveFile.md5Checksum(), download)) {
+          // same content was pulled before, for this or any other project
+          md5Checksum = driveFile.md5Checksum();
+        } else {
+          md5Checksum = driveService.downloadFile(accessToken, driveFile.googleDriveId(), download);
+
+          if(driveFile.md5Checksum() != null && !driveFile.md5Checksum().equals(md5Checksum)) {
+            throw new IOException("Checksum mismatch for downloaded file " + driveFile.relativePath());
+          }
+
+          blobStore.add(md5Checksum, download);
+        }
+
+        // just written, so hashed from the page cache, the first push after it won't need the md5
+        contentHash = XxHash64.hash(download);
+        Files.setPosixFilePermissions(download, PERMISSIONS);
+        Files.move(download, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(download);
+      }
+    }
+
+    // build sync state for sync scheduling, with the local modified time so
+    // the first push doesn't hash files which weren't touched since the pull
+    DriveFile synced = new DriveFile(
+      driveFile.googleDriveId(),
+      driveFile.relativePath(),
+      md5Checksum,
+      Files.getLastModifiedTime(localPath).toMillis(),
+      driveFile.size()
+    );
+    syncState.put(projectId, synced);
+    fileFingerprints.put(
+      projectId, driveFile.relativePath(), FileFingerprints.stat(localPath).withContentHash(contentHash)
+    );
+
+    // the real content is here now
+    Map<String, Placeholder> pending = placeholders.get(projectId);
+    if(pending != null) pending.remove(driveFile.relativePath());
+
+    return synced;
+  }
+
+  // an empty file with mtime 0 stands in for every file to download, so the tree is
+  // complete right away, the sync state already holds drive's version of each of them
+  // (with drive's md5, so a restored project knows what's still missing)
+  // only for files without a local copy, nothing local is ever truncated for one
+  private void createPlaceholders(Integer projectId, Path projectRoot, List<DriveFile> toDownload) throws IOException {
+    for(DriveFile driveFile : toDownload) {
+      Path localPath = projectRoot.resolve(driveFile.relativePath());
+      Files.createDirectories(localPath.getParent());
+
+      Files.createFile(localPath);
+
+      // empty files are complete as they are
+      if(driveFile.size() == 0L) {
+        syncState.put(projectId, new DriveFile(
+          driveFile.googleDriveId(),
+          driveFile.relativePath(),
+          EMPTY_MD5,
+          Files.getLastModifiedTime(localPath).toMillis(),
+          0L
+        ));
+        fileFingerprints.put(projectId, driveFile.relativePath(), FileFingerprints.stat(localPath));
+
+        continue;
+      }
+
+      Files.setLastModifiedTime(localPath, FileTime.fromMillis(0L));
+      syncState.put(projectId, driveFile);
+      fileFingerprints.put(projectId, driveFile.relativePath(), FileFingerprints.stat(localPath));
+    }
+  }
+
+  // registers the placeholders still on disk and downloads them in the background,
+  // the files most likely to be opened first: shallow ones, recently edited ones, small ones
+  private void startHydration(Integer projectId) {
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+    ConcurrentHashMap<String, Placeholder> pending = new ConcurrentHashMap<> ();
+
+    for(DriveFile tracked : syncState.getProjectSnapshot(projectId).values()) {
+      Path localPath = projectRoot.resolve(tracked.relativePath());
+
+      if(!isPlaceholder(localPath, tracked)) continue;
+
+      try {
+        pending.put(tracked.relativePath(), new Placeholder(tracked, FileFingerprints.stat(localPath)));
+      } catch(IOException ex) {
+        // gone already
+      }
+    }
+
+    if(pending.isEmpty()) return;
+
+    placeholders.put(projectId, pending);
+
+    List<Callable<Void>> tasks = pending.values().stream()
+      .map(Placeholder::driveFile)
+      .sorted(
+        Comparator.comparingLong((DriveFile driveFile) -> driveFile.relativePath().chars().filter(c -> c == '/').count())
+          .thenComparing(DriveFile::modifiedAt, Comparator.reverseOrder())
+          .thenComparingLong(DriveFile::size)
+      )
+      .map(driveFile -> (Callable<Void>) () -> {
+        try {
+          hydrate(projectId, driveFile.relativePath());
+        } catch(IOException ex) {
+          // left as a placeholder, reading it tries again
+          log.warn("Prefetch of {} failed for project {}", driveFile.relativePath(), projectId, ex);
+        }
+
+        return null;
+      })
+      .toList();
+
+    log.info("Fetching {} files of project {} in the background", tasks.size(), projectId);
+
+    // the permits are fair, so the tasks start in this order
+    prefetches.put(projectId, submitAll(projectId, tasks));
+  }
+
+  // makes sure a file has its content, downloading it now if it's still a placeholder
+  // only one download per file, whoever asks for it while it's running waits for it
+  public void hydrate(Integer projectId, String relativePath) throws IOException, InterruptedException {
+    Map<String, Placeholder> pending = placeholders.get(projectId);
+
+    if(pending == null || !pending.containsKey(relativePath)) return;
+
+    CompletableFuture<Void> download = new CompletableFuture<> ();
+    ConcurrentHashMap<String, CompletableFuture<Void>> running =
+      hydrations.computeIfAbsent(projectId, k -> new ConcurrentHashMap<> ());
+    CompletableFuture<Void> existing = running.putIfAbsent(relativePath, download);
+
+    if(existing == null) {
+      try {
+        hydrateNow(projectId, relativePath);
+        download.complete(null);
+      } catch(IOException | RuntimeException ex) {
+        download.completeExceptionally(ex);
+      } finally {
+        running.remove(relativePath, download);
+      }
+    } else {
+      download = existing;
+    }
+
+    try {
+      download.get();
+    } catch(ExecutionException ex) {
+      if(ex.getCause() instanceof IOException ioException) throw ioException;
+
+      throw new IOException("Failed to fetch " + relativePath, ex.getCause());
+    }
+  }
+
+  private void hydrateNow(Integer projectId, String relativePath) throws IOException {
+    Map<String, Placeholder> pending = placeholders.get(projectId);
+    Placeholder placeholder = pending != null ? pending.get(relativePath) : null;
+
+    if(placeholder == null) return;
+
+    DriveFile driveFile = placeholder.driveFile();
+
+    Path localPath = LOCAL_ROOT.resolve(projectId.toString()).resolve(relativePath);
+
+    // written locally in the meantime, that content wins
+    if(!isUnhydrated(projectId, relativePath, localPath)) {
+      pending.remove(relativePath);
+
+      return;
+    }
+
+    // downloaded aside and moved over the placeholder, so it's never seen half written
+    // and a prefetch cancelled midway leaves the placeholder as it was
+    Path download = tempFileFor(localPath);
+    String md5Checksum;
+    long contentHash;
+
+    try {
+      if(blobStore.copyTo(driveFile.md5Checksum(), download)) {
+        md5Checksum = driveFile.md5Checksum();
+      } else {
+        String accessToken = projectUtil.getAccessTokenForUser(projectId);
+        md5Checksum = driveService.downloadFile(accessToken, driveFile.googleDriveId(), download);
+
+        if(driveFile.md5Checksum() != null && !driveFile.md5Checksum().equals(md5Checksum)) {
+          throw new IOException("Checksum mismatch for downloaded file " + relativePath);
+        }
+
+        blobStore.add(md5Checksum, download);
+      }
+
+      if(!isUnhydrated(projectId, relativePath, localPath)) {
+        pending.remove(relativePath);
+
+        return;
+      }
+
+      contentHash = XxHash64.hash(download);
+      Files.setPosixFilePermissions(download, PERMISSIONS);
+      Files.move(download, localPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(download);
+    }
+
+    syncState.put(projectId, new DriveFile(
+      driveFile.googleDriveId(),
+      relativePath,
+      md5Checksum,
+      Files.getLastModifiedTime(localPath).toMillis(),
+      driveFile.size()
+    ));
+    fileFingerprints.put(projectId, relativePath, FileFingerprints.stat(localPath).withContentHash(contentHash));
+    pending.remove(relativePath);
+  }
+
+  // waits until the background downloads of a project are done
+  // the ones which failed are still placeholders after this
+  public void awaitHydration(Integer projectId) throws InterruptedException {
+    List<Future<Void>> futures = prefetches.get(projectId);
+
+    if(futures == null) return;
+
+    for(Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch(ExecutionException | CancellationException ex) {
+        // logged by the task itself, or the project was closed
+      }
+    }
+
+    prefetches.remove(projectId, futures);
+  }
+
+  // the placeholders stay registered, so a push still skips them
+  private void cancelHydration(Integer projectId) {
+    List<Future<Void>> futures = prefetches.remove(projectId);
+
+    if(futures != null) futures.forEach(future -> future.cancel(true));
+  }
+
+  // a registered placeholder nobody wrote to since it was registered (same size 0, mtime 0,
+  // inode and ctime), a file the user emptied or replaced is a real file
+  private boolean isUnhydrated(Integer projectId, String relativePath, Path localPath) {
+    Map<String, Placeholder> pending = placeholders.get(projectId);
+    Placeholder placeholder = pending != null ? pending.get(relativePath) : null;
+
+    if(placeholder == null) return false;
+
+    try {
+      return placeholder.fingerprint().sameFile(FileFingerprints.stat(localPath));
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+
+  // an empty file with mtime 0 for a file which isn't empty on drive
+  private static boolean isPlaceholder(Path localPath, DriveFile tracked) {
+    if(tracked.size() == 0L) return false;
+
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(localPath, BasicFileAttributes.class);
+
+      return attributes.isRegularFile()
+        && attributes.size() == 0L
+        && attributes.lastModifiedTime().toMillis() == 0L;
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+
+  // build path index from local dir to enable frontend to make request using hash
+  // instead of using storing long paths
+  private void indexProject(Integer projectId, Path projectRoot) throws IOException {
+    ignoreRules.walk(projectRoot, projectRoot).stream()
+      // excluding root as root can be easily identified by project id
+      // and exclude all files as only folders can contain other files and folders
+      .filter(path -> !path.equals(projectRoot) || Files.isRegularFile(path))
+      .forEach(path -> {
+        String relativePath = projectRoot.relativize(path).toString();
+        pathIndex.put(projectId, relativePath);
+      });
+  }
+
+  // full push, walks the whole project to find what changed
+  public void push(
+    Integer projectId,
+    String projectDriveId
+  ) throws IOException, InterruptedException {
+    push(projectId, projectDriveId, null);
+  }
+
+  // pushes only the given paths (files or folders, relative to project root)
+  // a null collection means everything, which walks the whole project
+  public void push(
+    Integer projectId,
+    String projectDriveId,
+    Collection<String> changedPaths
+  ) throws IOException, InterruptedException {
+    log.info(
+      "Pushing for project {} ({})",
+      projectId, changedPaths == null ? "full" : changedPaths.size() + " changed paths"
+    );
+
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+
+    if(!Files.exists(projectRoot)) {
+      log.warn("Local project directory not found, skipping push for {}", projectId);
+
+      return;
+    }
+
+    String accessToken = projectUtil.getAccessTokenForUser(projectId);
+
+    // changes made on drive elsewhere since the last sync come in first, one call to the changes
+    // feed for the whole project, so they're merged with local edits instead of overwritten by them
+    List<String> conflictPaths = pullRemoteChanges(accessToken, projectId, projectDriveId);
+
+    if(changedPaths != null && !conflictPaths.isEmpty()) {
+      changedPaths = new HashSet<> (changedPaths);
+      changedPaths.addAll(conflictPaths);
+    }
+
+    Map<String, DriveFile> snapshot = syncState.getProjectSnapshot(projectId);
+    List<Path> localFiles;
+    List<String> toDelete;
+
+    if(changedPaths == null) {
+      // empty folders won't be pushed...
+      // call it optimization :)
+      // ignored folders aren't even walked
+      localFiles = ignoreRules.walk(projectRoot, projectRoot).stream()
+        .filter(Files::isRegularFile)
+        .toList();
+
+      Set<String> localRelativePaths = new HashSet<> ();
+      for(Path localFile : localFiles) {
+        localRelativePaths.add(projectRoot.relativize(localFile).toString());
+      }
+
+      // all the files which were in the map previously but
+      // are absent now should be deleted, ignored ones are just left alone on drive
+      toDelete = snapshot.keySet().stream()
+        .filter(path -> !localRelativePaths.contains(path))
+        .filter(path -> !ignoreRules.isIgnored(projectRoot, path, false))
+        .toList();
+    } else {
+      localFiles = new ArrayList<> ();
+      toDelete = new ArrayList<> ();
+
+      collectChangedFiles(projectRoot, changedPaths, snapshot, localFiles, toDelete);
+    }
+
+    // a big file which is gone by now doesn't have to finish uploading
+    cancelMissingBackgroundUploads(projectId, projectRoot);
+
+    if(localFiles.isEmpty() && toDelete.isEmpty()) {
+      log.info("Nothing to push for project {}", projectId);
+
+      return;
+    }
+
+    List<UploadTask> toUpload = new ArrayList<> ();
+    Map<String, BackgroundUpload> runningUploads = backgroundUploads.getOrDefault(projectId, new ConcurrentHashMap<> ());
+
+    // find out which files to upload by stat, then xxhash, then md5 when drive has to be asked
+    for(Path localFile : localFiles) {
+      String relativePath = projectRoot.relativize(localFile).toString();
+
+      // already going out in the background, unless it changed again since
+      BackgroundUpload running = runningUploads.get(relativePath);
+      if(running != null) {
+        if(running.fingerprint.sameFile(FileFingerprints.stat(localFile))) continue;
+
+        running.cancel();
+      }
+
+      // not downloaded yet, there's nothing to push
+      if(isUnhydrated(projectId, relativePath, localFile)) continue;
+
+      Optional<DriveFile> existing = Optional.ofNullable(snapshot.get(relativePath));
+      if(existing.isEmpty()) {
+        // new file upload, don't care about parentDriveId it'll be handled later
+        // a big one is chunked now so its first edit can be diffed against it
+        FileFingerprints.FileFingerprint fingerprint = FileFingerprints.stat(localFile);
+        List<ChunkManifests.Chunk> chunks = null;
+
+        if(fingerprint.size() >= deltaThresholdBytes) {
+          ChunkManifests.FileScan scan = chunkManifests.scan(localFile, true);
+          chunks = scan.chunks();
+          fingerprint = fingerprint.withContentHash(scan.contentHash());
+        }
+
+        toUpload.add(new UploadTask(localFile, relativePath, null, null, chunks, fingerprint.size(), fingerprint));
+      } else {
+        FileFingerprints.FileFingerprint fingerprint = FileFingerprints.stat(localFile);
+        Optional<FileFingerprints.FileFingerprint> known = fileFingerprints.get(projectId, relativePath);
+
+        // not written since it was last synced (touched files included), no need to open it
+        if(known.isPresent() && known.get().sameFile(fingerprint)) {
+          continue;
+        }
+
+        long localModifiedAt = TimeUnit.NANOSECONDS.toMillis(fingerprint.modifiedNanos());
+        // if last modified time is less we skip
+        if(known.isEmpty() && localModifiedAt <= existing.get().modifiedAt()) {
+          fileFingerprints.put(projectId, relativePath, fingerprint);
+          continue;
+        }
+
+        // xxhash alone is enough if the synced content was hashed the same way
+        // otherwise the md5 has to be compared with drive's, it's computed in the same read
+        // as the xxhash (and the chunks of a big file)
+        ChunkManifests.FileScan scan = null;
+        boolean unchanged;
+
+        if(known.isPresent() && known.get().contentHash() != null) {
+          long contentHash = XxHash64.hash(localFile);
+          fingerprint = fingerprint.withContentHash(contentHash);
+
+          unchanged = known.get().contentHash() == contentHash;
+        } else {
+          scan = chunkManifests.scan(localFile, fingerprint.size() >= deltaThresholdBytes);
+          fingerprint = fingerprint.withContentHash(scan.contentHash());
+
+          unchanged = scan.md5Checksum().equals(existing.get().md5Checksum());
+        }
+
+        if(unchanged) {
+          // hashes matched, just update the last modified time to avoid recompute next cycle
+          fileFingerprints.put(projectId, relativePath, fingerprint);
+          syncState.put(
+            projectId, new DriveFile(
+              existing.get().googleDriveId(),
+              relativePath,
+              existing.get().md5Checksum(),
+              localModifiedAt,
+              existing.get().size()
+            )
+          );
+
+          continue;
+        }
+
+        if(scan == null && fingerprint.size() >= deltaThresholdBytes) {
+          scan = chunkManifests.scan(localFile, true);
+        }
+
+        List<ChunkManifests.Chunk> chunks = scan != null ? scan.chunks() : null;
+        long changedBytes = chunks != null
+          ? chunkManifests.changedBytes(projectId, relativePath, chunks)
+          : fingerprint.size();
+
+        toUpload.add(new UploadTask(
+          localFile, relativePath, existing.get().googleDriveId(), null, chunks, changedBytes, fingerprint
+        ));
+      }
+    }
+
+    // files the user saved go first, then small edits before big rewrites, then the most recently edited
+    Set<String> important = importantPaths.getOrDefault(projectId, Set.of());
+    toUpload.sort(
+      Comparator.comparing((UploadTask task) -> !important.contains(task.getRelativePath()))
+        .thenComparingLong(UploadTask::getChangedBytes)
+        .thenComparing(task -> task.getFingerprint().modifiedNanos(), Comparator.reverseOrder())
+    );
+
+    long changedBytes = toUpload.stream().mapToLong(UploadTask::getChangedBytes).sum();
+
+    // parent folders of all new files are looked up (and created) together, in batches
+    Set<String> parentFolders = new HashSet<> ();
+    for(UploadTask task : toUpload) {
+      if(task.getExistingFileId() == null) {
+        parentFolders.add(parentPath(task.getRelativePath()));
+      }
+    }
+
+    Map<String, CompletableFuture<String>> folderIds =
+      resolveFolders(accessToken, projectId, projectDriveId, parentFolders);
+
+    // parallelly upload files, big ones are left running in the background
+    // so they can't hold up the next push (and the next save)
+    List<Callable<Void>> uploads = new ArrayList<> ();
+    int backgroundCount = 0;
+
+    for(UploadTask task : toUpload) {
+      Callable<Void> upload = upload(accessToken, projectId, task, folderIds);
+
+      if(task.getFingerprint().size() >= backgroundUploadThresholdBytes) {
+        startBackgroundUpload(projectId, task, upload);
+        backgroundCount++;
+      } else {
+        uploads.add(upload);
+      }
+    }
+
+    List<Future<Void>> futures = new ArrayList<> (submitAll(projectId, uploads));
+
+    // deletes are batched, they go out from this thread while the uploads run
+    if(!toDelete.isEmpty()) {
+      List<String> driveFileIds = toDelete.stream()
+        .map(relativePath -> snapshot.get(relativePath).googleDriveId())
+        .toList();
+
+      List<CompletableFuture<Void>> trashed = driveService.trashFiles(accessToken, driveFileIds);
+
+      for(int i = 0; i < toDelete.size(); i++) {
+        String relativePath = toDelete.get(i);
+
+        futures.add(trashed.get(i).thenRun(() -> {
+          syncState.remove(projectId, relativePath);
+          syncState.removeUploadSession(projectId, relativePath);
+          chunkManifests.delete(projectId, relativePath);
+          fileFingerprints.remove(projectId, relativePath);
+        }));
+      }
+    }
+
+    List<String> errors = collectErrors(futures);
+    if(!errors.isEmpty()) {
+      throw new RuntimeException("Push failed for some files:\n" + String.join("\n", errors));
+    }
+
+    log.info(
+      "Push completed for project '{}': {} uploaded ({} bytes changed), {} in background, {} deleted",
+      projectId, toUpload.size() - backgroundCount, changedBytes, backgroundCount, toDelete.size()
+    );
+  }
+
+  // when the changes feed can't be applied the project is compared with a full listing
+  // instead, if that fails too the push fails, local edits never go over drive's changes unseen
+  private List<String> pullRemoteChanges(
+    String accessToken,
+    Integer projectId,
+    String projectDriveId
+  ) throws IOException, InterruptedException {
+    long now = System.currentTimeMillis();
+    Long pulledAt = remoteChangesPulledAt.get(projectId);
+
+    // saves come in quick succession, one look at drive covers all of them
+    if(pulledAt != null && now - pulledAt < remoteChangesIntervalMillis) return List.of();
+
+    Optional<String> pageToken = syncState.getPageToken(projectId);
+    List<String> written = null;
+
+    if(pageToken.isPresent()) {
+      try {
+        written = pullChanges(accessToken, projectId, projectDriveId, pageToken.get());
+      } catch(IOException | RuntimeException ex) {
+        // e.g. a folder moved on drive
+        log.warn("Failed to apply drive changes of project {}, reconciling with a full listing", projectId, ex);
+      }
+    }
+
+    if(written == null) written = reconcileRemote(accessToken, projectId, projectDriveId);
+
+    remoteChangesPulledAt.put(projectId, now);
+
+    return written;
+  }
 
-  // this function will pull the files inside the project to local folder
-  public void pull(
+  // the project on drive compared file by file with the sync state, like a full pull of a
+  // project with a local copy, but without bringing back files deleted here and not pushed yet
+  // returns the paths written while resolving conflicts, they have to be pushed
+  private List<String> reconcileRemote(
     String accessToken,
     Integer projectId,
     String projectDriveId
-  ) throws IOException, InterruptedException, ExecutionException {
-    log.info("Pulling for project {}", projectId);
-
-    // fetch all file metadata from drive
-    // metadata is fetched first to allow for multithreaded download later on
-    List<DriveFile> driveFiles = driveService.listFilesRecursively(accessToken, projectDriveId);
-
-    // create all required directories first
+  ) throws IOException, InterruptedException {
     Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
 
-    Files.createDirectories(projectRoot);
+    // taken before listing so nothing changed during the listing is missed next time
+    String startPageToken = driveService.getStartPageToken(accessToken);
+    DriveTree driveTree = driveService.listProjectTree(accessToken, projectDriveId);
+    Map<String, DriveFile> known = syncState.getProjectSnapshot(projectId);
 
-    // while making container everything is set to read only
-    // A little hack to allow user to modify anything in project folder only
-    Set<PosixFilePermission> permissions =
-      PosixFilePermissions.fromString("rwxrwxrwx");
+    Map<DriveFile, DriveFile> conflicts = new LinkedHashMap<> ();
+    List<DriveFile> toDownload = reconcileWithPersistedState(projectId, projectRoot, driveTree.files(), conflicts)
+      .stream()
+      .filter(driveFile -> !isLocallyDeleted(projectRoot, known.get(driveFile.relativePath()), driveFile))
+      .filter(driveFile -> !ignoreRules.isIgnored(projectRoot, driveFile.relativePath(), false))
+      .toList();
 
-    Files.setPosixFilePermissions(projectRoot, permissions);
+    downloadAll(accessToken, projectId, projectRoot, toDownload);
 
-    for(DriveFile driveFile : driveFiles) {
-      Path localPath = projectRoot.resolve(driveFile.relativePath());
-      Files.createDirectories(localPath.getParent());
+    List<String> written = new ArrayList<> ();
+    for(Map.Entry<DriveFile, DriveFile> conflict : conflicts.entrySet()) {
+      if(ignoreRules.isIgnored(projectRoot, conflict.getKey().relativePath(), false)) continue;
+
+      written.addAll(resolveConflict(accessToken, projectId, projectRoot, conflict.getKey(), conflict.getValue()));
     }
 
-    // download files parallelly
-    List<Callable<DriveFile>> tasks = driveFiles.stream()
-      .map(driveFile -> (Callable<DriveFile>) () -> {
-        Path localPath = projectRoot.resolve(driveFile.relativePath());
-
-        // drive doesn't allow download for empty files
-        // so, just create them locally
-        if(driveFile.size() == 0L) {
-          // use this if FileAlreadyExistsException is thrown
-//          Files
-//            .newOutputStream(localPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
-//            .close();
-
-          Files.createFile(localPath);
-        } else {
-          driveService.downloadFile(accessToken, driveFile.googleDriveId(), localPath);
-        }
+    Map<String, String> knownFolders = syncState.getFolderSnapshot(projectId);
+    for(String folderPath : knownFolders.keySet()) {
+      if(!driveTree.folders().containsKey(folderPath)) syncState.removeFolder(projectId, folderPath);
+    }
+    driveTree.folders().forEach((folderPath, folderId) -> syncState.putFolder(projectId, folderPath, folderId));
 
-        return driveFile;
-      })
-      .toList();
+    syncState.putPageToken(projectId, startPageToken);
 
-    List<Future<DriveFile>> futures = executorService.invokeAll(tasks);
-    List<String> errors = collectErrors(futures);
+    if(toDownload.stream().anyMatch(driveFile -> IgnoreRules.isIgnoreFile(driveFile.relativePath()))) {
+      ignoreRules.invalidate(projectRoot);
+    }
 
-    if(!errors.isEmpty()) {
-      throw new RuntimeException("Pull failed for some files:\n" + String.join("\n", errors));
+    for(DriveFile driveFile : toDownload) {
+      for(Path path = projectRoot.resolve(driveFile.relativePath()); !path.equals(projectRoot); path = path.getParent()) {
+        Files.setPosixFilePermissions(path, PERMISSIONS);
+      }
     }
 
-    // build sync state for sync scheduling
-    for(Future<DriveFile> future : futures) {
-      DriveFile driveFile = future.get();
-      syncState.put(projectId, driveFile);
+    indexProject(projectId, projectRoot);
+
+    log.info(
+      "Reconciled project {} with drive: {} files downloaded, {} conflicts",
+      projectId, toDownload.size(), conflicts.size()
+    );
+
+    return written;
+  }
+
+  // unchanged on drive since the last sync and gone locally, the push deletes it on drive
+  private static boolean isLocallyDeleted(Path projectRoot, DriveFile tracked, DriveFile remote) {
+    return tracked != null
+      && tracked.googleDriveId().equals(remote.googleDriveId())
+      && Objects.equals(tracked.md5Checksum(), remote.md5Checksum())
+      && !Files.exists(projectRoot.resolve(remote.relativePath()));
+  }
+
+  // a file the user explicitly saved, it's put in front of the next push
+  public void markImportant(Integer projectId, String relativePath) {
+    importantPaths.computeIfAbsent(projectId, k -> ConcurrentHashMap.newKeySet()).add(relativePath);
+  }
+
+  // waits for the big uploads of a project still running in the background
+  public void awaitBackgroundUploads(Integer projectId) throws InterruptedException {
+    Map<String, BackgroundUpload> uploads = backgroundUploads.get(projectId);
+
+    if(uploads == null) return;
+
+    List<String> errors = new ArrayList<> ();
+    for(BackgroundUpload upload : List.copyOf(uploads.values())) {
+      try {
+        upload.finished.get();
+      } catch(CancellationException ex) {
+        // replaced by a newer upload of the same file, or the file is gone
+      } catch(ExecutionException ex) {
+        errors.add(ex.getCause().getMessage());
+      }
     }
 
-    // build path index from local dir to enable frontend to make request using hash
-    // instead of using storing long paths
-    try(Stream<Path> paths = Files.walk(projectRoot)) {
-      paths
-        // excluding root as root can be easily identified by project id
-        // and exclude all files as only folders can contain other files and folders
-        .filter(path -> !path.equals(projectRoot) || Files.isRegularFile(path))
-        .forEach(path -> {
-          String relativePath = projectRoot.relativize(path).toString();
-          pathIndex.put(projectId, relativePath);
-        });
+    if(!errors.isEmpty()) {
+      throw new RuntimeException("Push failed for some files:\n" + String.join("\n", errors));
     }
+  }
+
+  private Callable<Void> upload(
+    String accessToken,
+    Integer projectId,
+    UploadTask task,
+    Map<String, CompletableFuture<String>> folderIds
+  ) {
+    return () -> {
+      // a background upload of the same new file may have created it in the meantime
+      String existingFileId = syncState.get(projectId, task.getRelativePath())
+        .map(DriveFile::googleDriveId)
+        .orElse(task.getExistingFileId());
+      String parentDriveId = null;
+
+      if(existingFileId == null) {
+        try {
+          parentDriveId = folderIds.get(parentPath(task.getRelativePath())).get();
+        } catch(ExecutionException ex) {
+          throw new IOException(
+            "Failed to create parent folder of " + task.getRelativePath() + ": " + ex.getCause().getMessage(),
+            ex.getCause()
+          );
+        }
+      }
+
+      long size = Files.size(task.getLocalFile());
+      long modifiedAt = Files.getLastModifiedTime(task.getLocalFile()).toMillis();
+
+      // an unfinished upload of this very content from an earlier push can be continued
+      String resumeSessionUri = syncState.getUploadSession(projectId, task.getRelativePath())
+        .filter(session -> session.size() == size && session.modifiedAt() == modifiedAt)
+        .map(UploadSession::sessionUri)
+        .orElse(null);
+
+      DriveFile result = driveService.uploadFile(
+        accessToken, task.getLocalFile(), task.getRelativePath(),
+        parentDriveId, existingFileId, resumeSessionUri,
+        sessionUri -> syncState.putUploadSession(
+          projectId, new UploadSession(task.getRelativePath(), sessionUri, size, modifiedAt)
+        )
+      );
+      syncState.put(projectId, result);
+      syncState.removeUploadSession(projectId, task.getRelativePath());
+
+      fileFingerprints.put(projectId, task.getRelativePath(), task.getFingerprint());
+
+      // what was uploaded is the base of a merge if it changes on both sides later
+      if(size <= mergeMaxBytes && unchangedSince(task.getFingerprint(), task.getLocalFile())) {
+        blobStore.add(result.md5Checksum(), task.getLocalFile());
+      }
+
+      if(task.getChunks() != null) chunkManifests.save(projectId, task.getRelativePath(), task.getChunks());
+
+      Set<String> important = importantPaths.get(projectId);
+      if(important != null) important.remove(task.getRelativePath());
 
-    try(Stream<Path> paths = Files.walk(projectRoot)) {
-      paths
-        .forEach(path -> {
+      return null;
+    };
+  }
+
+  // runs outside of the push, with its own (small) limit per user so big files
+  // don't take the slots small saves need, a newer upload of the same file
+  // cancels the older one and waits for it to stop before it starts
+  private void startBackgroundUpload(Integer projectId, UploadTask task, Callable<Void> upload) {
+    Integer userId = projectOwners.computeIfAbsent(projectId, projectUtil::getUserIdForProject);
+    Semaphore limit = backgroundPermits.computeIfAbsent(userId, k -> new Semaphore(backgroundUploadConcurrency, true));
+    ConcurrentHashMap<String, BackgroundUpload> uploads =
+      backgroundUploads.computeIfAbsent(projectId, k -> new ConcurrentHashMap<> ());
+
+    BackgroundUpload background = new BackgroundUpload(task.getFingerprint());
+    BackgroundUpload previous = uploads.put(task.getRelativePath(), background);
+
+    if(previous != null) previous.cancel();
+
+    executorService.execute(() -> {
+      background.runner = Thread.currentThread();
+
+      try {
+        if(previous != null) {
           try {
-            // recursively change file permissions for all folders and files
-            // inside project root
-            Files.setPosixFilePermissions(path, permissions);
-          } catch(IOException ex) {
-            throw new RuntimeException(ex);
+            previous.finished.get();
+          } catch(CancellationException | ExecutionException ex) {
+            // it's been replaced, how it ended doesn't matter
           }
-        });
-    }
+        }
+
+        if(background.cancelled) throw new CancellationException();
+
+        limit.acquire();
+
+        try {
+          upload.call();
+        } finally {
+          limit.release();
+        }
+
+        background.finished.complete(null);
+      } catch(Exception ex) {
+        if(background.cancelled) {
+          background.finished.completeExceptionally(new CancellationException());
+          return;
+        }
+
+        log.error("Background upload of {} failed for project {}", task.getRelativePath(), projectId, ex);
+        // picked up again by the next push
+        projectWatcher.markDirty(projectId, List.of(task.getRelativePath()));
+        background.finished.completeExceptionally(ex);
+      } finally {
+        uploads.remove(task.getRelativePath(), background);
+      }
+    });
+  }
+
+  private void cancelMissingBackgroundUploads(Integer projectId, Path projectRoot) {
+    Map<String, BackgroundUpload> uploads = backgroundUploads.get(projectId);
+
+    if(uploads == null) return;
 
-    log.info("Pull finished for project {}: {} files", projectId, driveFiles.size());
+    uploads.forEach((relativePath, upload) -> {
+      if(!Files.exists(projectRoot.resolve(relativePath))) upload.cancel();
+    });
   }
 
-  public void push(
+  private void cancelBackgroundUploads(Integer projectId) {
+    Map<String, BackgroundUpload> uploads = backgroundUploads.remove(projectId);
+
+    if(uploads != null) uploads.values().forEach(BackgroundUpload::cancel);
+  }
+
+  public void cleanup(
     Integer projectId,
     String projectDriveId
   ) throws IOException, InterruptedException {
-    log.info("Pushing for project {}", projectId);
+    log.info("Cleaning up project '{}'", projectId);
 
-    String accessToken = projectUtil.getAccessTokenForUser(projectId);
+    // placeholders left are skipped by the push, and downloaded when the project is opened again
+    cancelHydration(projectId);
+    push(projectId, projectDriveId);
+    awaitBackgroundUploads(projectId);
 
-    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+    // the local folder and the sync state on disk are kept, so opening
+    // the project again only fetches what changed on drive in the meantime
+    syncState.unloadProject(projectId);
+    pathIndex.clearProject(projectId);
+    fileFingerprints.clearProject(projectId);
+    ignoreRules.invalidate(LOCAL_ROOT.resolve(projectId.toString()));
+    forgetProject(projectId);
 
-    if(!Files.exists(projectRoot)) {
-      log.warn("Local project directory not found, skipping push for {}", projectId);
+    log.info("Cleanup complete for project {}", projectId);
+  }
 
-      return;
-    }
+  // true if the project was synced before and its local folder is still around
+  public boolean hasLocalCopy(Integer projectId) {
+    return syncState.restoreProject(projectId) && Files.exists(LOCAL_ROOT.resolve(projectId.toString()));
+  }
 
-    // empty folders won't be pushed...
-    // call it optimization :)
-    List<Path> localFiles;
-    try(Stream<Path> walk = Files.walk(projectRoot)) {
-      localFiles = walk.filter(Files::isRegularFile).toList();
-    }
+  // forgets a project which failed to open, without touching its local folder or the
+  // sync state on disk, the next open resumes from whatever this one got done
+  public void release(Integer projectId) {
+    log.info("Releasing project {}, its local copy is kept", projectId);
 
-    Map<String, DriveFile> snapshot = syncState.getProjectSnapshot(projectId);
-    Set<String> localRelativePaths = new HashSet<> ();
-    List<UploadTask> toUpload = new ArrayList<> ();
+    cancelBackgroundUploads(projectId);
+    cancelHydration(projectId);
 
-    // find out which files to upload by last modified time and file hash(md5)
-    for(Path localFile : localFiles) {
-      String relativePath = projectRoot.relativize(localFile).toString();
-      localRelativePaths.add(relativePath);
+    syncState.unloadProject(projectId);
+    pathIndex.clearProject(projectId);
+    fileFingerprints.clearProject(projectId);
+    ignoreRules.invalidate(LOCAL_ROOT.resolve(projectId.toString()));
+    forgetProject(projectId);
+  }
 
-      Optional<DriveFile> existing = Optional.ofNullable(snapshot.get(relativePath));
-      if(existing.isEmpty()) {
-        // new file upload, don't care about parentDriveId it'll be handled later
-        toUpload.add(new UploadTask(localFile, relativePath, null, null));
-      } else {
-        long localModifiedAt = Files.getLastModifiedTime(localFile).toMillis();
-        // if last modified time is less we skip
-        if(localModifiedAt <= existing.get().modifiedAt()) {
-          continue;
-        }
+  // throw away the local folder and sync state of a project
+  // nothing is pushed, so only call this for a project which isn't open
+  public void discard(Integer projectId) throws IOException {
+    log.info("Discarding local copy of project {}", projectId);
 
-        // if file is modified check hash to decide whether to upload or not
-        String localHash = computeMd5Hash(localFile);
-        if(localHash.equals(existing.get().md5Checksum())) {
-          // hashes matched, just update the last modified time to avoid recompute next cycle
-          syncState.put(
-            projectId, new DriveFile(
-              existing.get().googleDriveId(),
-              relativePath,
-              existing.get().md5Checksum(),
-              localModifiedAt,
-              existing.get().size()
-            )
-          );
+    cancelBackgroundUploads(projectId);
+    cancelHydration(projectId);
 
-          continue;
-        }
+    deleteLocalDirectory(LOCAL_ROOT.resolve(projectId.toString()));
+    syncState.clearProject(projectId);
+    chunkManifests.deleteProject(projectId);
+    pathIndex.clearProject(projectId);
+    fileFingerprints.clearProject(projectId);
+    ignoreRules.invalidate(LOCAL_ROOT.resolve(projectId.toString()));
+    forgetProject(projectId);
+  }
 
-        toUpload.add(new UploadTask(localFile, relativePath, existing.get().googleDriveId(), null));
-      }
-    }
+  // drive ids of the given folders of a project, creating the missing ones
+  // ids known from the last pull or push are used without asking drive, and a folder
+  // some other push is already creating is waited on, so it isn't created twice
+  private Map<String, CompletableFuture<String>> resolveFolders(
+    String accessToken,
+    Integer projectId,
+    String projectDriveId,
+    Set<String> folderPaths
+  ) {
+    Map<String, CompletableFuture<String>> result = new HashMap<> ();
+    Map<String, CompletableFuture<String>> owned = new HashMap<> ();
+    ConcurrentHashMap<String, CompletableFuture<String>> pending =
+      pendingFolders.computeIfAbsent(projectId, k -> new ConcurrentHashMap<> ());
 
-    // all the files which were in the map previously but
-    // are absent now should be deleted
-    List<String> toDelete = snapshot.keySet().stream()
-      .filter(path -> !localRelativePaths.contains(path))
-      .toList();
+    for(String folderPath : folderPaths) {
+      Optional<String> knownId = folderPath.isEmpty()
+        ? Optional.of(projectDriveId)
+        : syncState.getFolderId(projectId, folderPath);
 
-    // making new list to avoid messing with toUpload list
-    List<UploadTask> resolvedTasks = new ArrayList<> ();
-    // create parent folder for newly made files if necessary
-    for(UploadTask task : toUpload) {
-      if(task.getExistingFileId() == null) {
-        String parentDriveId =
-          driveService.ensureFolderPath(
-            accessToken,
-            projectDriveId,
-            task.getRelativePath()
-          );
+      if(knownId.isPresent()) {
+        result.put(folderPath, CompletableFuture.completedFuture(knownId.get()));
+        continue;
+      }
+
+      CompletableFuture<String> future = new CompletableFuture<> ();
+      CompletableFuture<String> inFlight = pending.putIfAbsent(folderPath, future);
 
-        resolvedTasks.add(
-          new UploadTask(task.getLocalFile(), task.getRelativePath(), null, parentDriveId)
-        );
+      if(inFlight != null) {
+        result.put(folderPath, inFlight);
       } else {
-        resolvedTasks.add(
-          new UploadTask(task.getLocalFile(), task.getRelativePath(), task.getExistingFileId(), null)
-        );
+        owned.put(folderPath, future);
+        result.put(folderPath, future);
       }
     }
 
-    // parallelly upload and delete files
-    List<Callable<Void>> tasks = new ArrayList<> ();
-    for(UploadTask task : resolvedTasks) {
-      tasks.add(() -> {
-        DriveFile result = driveService.uploadFile(
-          accessToken, task.getLocalFile(), task.getRelativePath(),
-          task.getParentDriveId(), task.getExistingFileId()
-        );
-        syncState.put(projectId, result);
+    if(owned.isEmpty()) return result;
 
-        return null;
+    try {
+      Map<String, CompletableFuture<String>> resolved = driveService.ensureFolderPaths(
+        accessToken, projectDriveId, owned.keySet(), syncState.getFolderSnapshot(projectId)
+      );
+
+      // parents resolved on the way are worth keeping too
+      resolved.forEach((folderPath, folderId) -> {
+        if(!folderPath.isEmpty() && folderId.isDone() && !folderId.isCompletedExceptionally()) {
+          syncState.putFolder(projectId, folderPath, folderId.join());
+        }
       });
+
+      owned.forEach((folderPath, future) -> resolved.get(folderPath).whenComplete((folderId, ex) -> {
+        if(ex != null) future.completeExceptionally(ex);
+        else future.complete(folderId);
+      }));
+    } catch(RuntimeException ex) {
+      owned.values().forEach(future -> future.completeExceptionally(ex));
+    } finally {
+      owned.forEach(pending::remove);
     }
 
-    for(String relativePath : toDelete) {
-      String driveFileId = snapshot.get(relativePath).googleDriveId();
+    return result;
+  }
+
+  // turns the changed paths reported by the watcher into files to check and files to delete
+  // a changed folder (created, moved in or deleted) stands for everything under it
+  private void collectChangedFiles(
+    Path projectRoot,
+    Collection<String> changedPaths,
+    Map<String, DriveFile> snapshot,
+    List<Path> localFiles,
+    List<String> toDelete
+  ) throws IOException {
+    Set<Path> seenFiles = new HashSet<> ();
+    Set<String> seenDeletes = new HashSet<> ();
 
-      tasks.add(() -> {
-        driveService.deleteFile(accessToken, driveFileId);
-        syncState.remove(projectId, relativePath);
+    for(String changedPath : changedPaths) {
+      Path local = projectRoot.resolve(changedPath);
 
-        return null;
-      });
+      if(ignoreRules.isIgnored(projectRoot, changedPath, Files.isDirectory(local))) continue;
+
+      if(Files.isRegularFile(local)) {
+        if(seenFiles.add(local)) localFiles.add(local);
+      } else if(Files.isDirectory(local)) {
+        ignoreRules.walk(projectRoot, local).stream()
+          .filter(Files::isRegularFile)
+          .filter(seenFiles::add)
+          .forEach(localFiles::add);
+      }
+
+      // anything tracked at or under this path which is no longer there was deleted
+      String prefix = changedPath + "/";
+      for(String trackedPath : snapshot.keySet()) {
+        if(!trackedPath.equals(changedPath) && !trackedPath.startsWith(prefix)) continue;
+
+        if(ignoreRules.isIgnored(projectRoot, trackedPath, false)) continue;
+
+        if(!Files.isRegularFile(projectRoot.resolve(trackedPath)) && seenDeletes.add(trackedPath)) {
+          toDelete.add(trackedPath);
+        }
+      }
     }
+  }
 
-    List<Future<Void>> futures = executorService.invokeAll(tasks);
-    List<String> errors = collectErrors(futures);
-    if(!errors.isEmpty()) {
-      throw new RuntimeException("Push failed for some files:\n" + String.join("\n", errors));
+  // if the sync state of this project survived on disk (e.g. the server restarted
+  // with the project still open) only the files changed on drive since then are
+  // downloaded, everything else already sits in the local folder
+  // files edited locally since the last sync go to conflicts instead of being downloaded over
+  private List<DriveFile> reconcileWithPersistedState(
+    Integer projectId,
+    Path projectRoot,
+    List<DriveFile> driveFiles,
+    Map<DriveFile, DriveFile> conflicts
+  ) throws IOException {
+    if(!syncState.restoreProject(projectId)) {
+      return driveFiles;
+    }
+
+    Map<String, DriveFile> known = syncState.getProjectSnapshot(projectId);
+    Set<String> remotePaths = new HashSet<> ();
+    List<DriveFile> toDownload = new ArrayList<> ();
+
+    for(DriveFile driveFile : driveFiles) {
+      remotePaths.add(driveFile.relativePath());
+
+      DriveFile existing = known.get(driveFile.relativePath());
+      Path localPath = projectRoot.resolve(driveFile.relativePath());
+
+      // same drive file with the same content as the last sync,
+      // so the local copy is at least as new as the drive one
+      if(existing != null
+        && existing.googleDriveId().equals(driveFile.googleDriveId())
+        && Objects.equals(existing.md5Checksum(), driveFile.md5Checksum())
+        && Files.exists(localPath)) {
+        continue;
+      }
+
+      // changed here too since the last sync (or created on both sides), don't overwrite it
+      if(Files.isRegularFile(localPath) && (existing == null || isLocallyModified(projectId, localPath, existing))) {
+        conflicts.put(driveFile, existing);
+        continue;
+      }
+
+      toDownload.add(driveFile);
+    }
+
+    // files deleted from drive while the project wasn't synced
+    for(DriveFile stale : known.values()) {
+      if(remotePaths.contains(stale.relativePath())) continue;
+
+      removeLocalFile(projectId, projectRoot, stale);
     }
 
     log.info(
-      "Push completed for project '{}': {} uploaded, {} deleted",
-      projectId, toUpload.size(), toDelete.size()
+      "Restored sync state for project {}, {} of {} files changed on drive, {} of them changed locally too",
+      projectId, toDownload.size() + conflicts.size(), driveFiles.size(), conflicts.size()
     );
+
+    return toDownload;
   }
 
-  public void cleanup(
+  // a file deleted on drive is deleted locally too, unless it was modified
+  // locally after the last sync, then it's kept and the next push uploads it as a new file
+  private void removeLocalFile(Integer projectId, Path projectRoot, DriveFile tracked) throws IOException {
+    Path localPath = projectRoot.resolve(tracked.relativePath());
+
+    if(Files.isRegularFile(localPath) && !isLocallyModified(projectId, localPath, tracked)) {
+      Files.delete(localPath);
+    }
+
+    syncState.remove(projectId, tracked.relativePath());
+    fileFingerprints.remove(projectId, tracked.relativePath());
+  }
+
+  private void removeLocalFolder(
     Integer projectId,
-    String projectDriveId
-  ) throws IOException, InterruptedException {
-    log.info("Cleaning up project '{}'", projectId);
+    Path projectRoot,
+    String folderPath,
+    Map<String, DriveFile> files
+  ) throws IOException {
+    String prefix = folderPath + "/";
 
-    push(projectId, projectDriveId);
-    deleteLocalDirectory(LOCAL_ROOT.resolve(projectId.toString()));
-    syncState.clearProject(projectId);
-    pathIndex.clearProject(projectId);
+    for(DriveFile tracked : files.values()) {
+      if(tracked.relativePath().startsWith(prefix)) {
+        removeLocalFile(projectId, projectRoot, tracked);
+      }
+    }
 
-    log.info("Cleanup complete for project {}", projectId);
+    for(String trackedFolder : syncState.getFolderSnapshot(projectId).keySet()) {
+      if(trackedFolder.equals(folderPath) || trackedFolder.startsWith(prefix)) {
+        syncState.removeFolder(projectId, trackedFolder);
+      }
+    }
+
+    Path localFolder = projectRoot.resolve(folderPath);
+    if(!Files.isDirectory(localFolder)) return;
+
+    // remove whatever folders are left empty, deepest first
+    try(Stream<Path> paths = Files.walk(localFolder)) {
+      for(Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        if(!Files.isDirectory(path)) continue;
+
+        try(Stream<Path> children = Files.list(path)) {
+          if(children.findAny().isEmpty()) Files.delete(path);
+        }
+      }
+    }
+  }
+
+  private boolean isLocallyModified(Integer projectId, Path localPath, DriveFile tracked) throws IOException {
+    Optional<FileFingerprints.FileFingerprint> known = fileFingerprints.get(projectId, tracked.relativePath());
+
+    if(known.isPresent() && known.get().sameFile(FileFingerprints.stat(localPath))) return false;
+    if(Files.getLastModifiedTime(localPath).toMillis() <= tracked.modifiedAt()) return false;
+
+    return !computeMd5Hash(localPath).equals(tracked.md5Checksum());
+  }
+
+  private static boolean unchangedSince(FileFingerprints.FileFingerprint fingerprint, Path path) {
+    try {
+      return fingerprint.sameFile(FileFingerprints.stat(path));
+    } catch(IOException ex) {
+      return false;
+    }
+  }
+
+  private static String childPath(String parentPath, String name) {
+    return parentPath.isEmpty() ? name : parentPath + "/" + name;
+  }
+
+  // starts every task on its own virtual thread, each waits for a free slot of its
+  // project and of its user first, so one big pull can't hold up everyone else
+  // tasks of a pull in progress can be cancelled with cancelPull
+  private <T> List<Future<T>> submitAll(Integer projectId, List<Callable<T>> tasks) {
+    Semaphore projectLimit = projectPermits.computeIfAbsent(projectId, k -> new Semaphore(projectIoConcurrency, true));
+    Integer userId = projectOwners.computeIfAbsent(projectId, projectUtil::getUserIdForProject);
+    Semaphore userLimit = userPermits.computeIfAbsent(userId, k -> new Semaphore(userIoConcurrency, true));
+    PullTasks pullTasks = runningPulls.get(projectId);
+
+    List<Future<T>> futures = new ArrayList<> ();
+
+    for(Callable<T> task : tasks) {
+      FutureTask<T> future = new FutureTask<> (() -> {
+        projectLimit.acquire();
+
+        try {
+          userLimit.acquire();
+
+          try {
+            return task.call();
+          } finally {
+            userLimit.release();
+          }
+        } finally {
+          projectLimit.release();
+        }
+      }) {
+        @Override
+        protected void done() {
+          if(pullTasks != null) pullTasks.remove(this);
+        }
+      };
+
+      if(pullTasks != null) pullTasks.add(future);
+
+      futures.add(future);
+      executorService.execute(future);
+    }
+
+    return futures;
+  }
+
+  private void forgetProject(Integer projectId) {
+    backgroundUploads.remove(projectId);
+    importantPaths.remove(projectId);
+    placeholders.remove(projectId);
+    hydrations.remove(projectId);
+    remoteChangesPulledAt.remove(projectId);
+    pendingFolders.remove(projectId);
+    projectPermits.remove(projectId);
+    projectOwners.remove(projectId);
+  }
+
+  private static String parentPath(String relativePath) {
+    int end = relativePath.lastIndexOf('/');
+
+    return end == -1 ? "" : relativePath.substring(0, end);
   }
 
   private <T> List<String> collectErrors(List<Future<T>> futures) {
@@ -299,4 +1813,57 @@ public class FileSyncEngine {
     }
   }
 
+  // drive's version of a file not downloaded yet, and the stat of its placeholder
+  private record Placeholder(DriveFile driveFile, FileFingerprints.FileFingerprint fingerprint) {
+  }
+
+  private static class BackgroundUpload {
+
+    // stat of the file when the upload started
+    private final FileFingerprints.FileFingerprint fingerprint;
+    private final CompletableFuture<Void> finished = new CompletableFuture<> ();
+    private volatile Thread runner;
+    private volatile boolean cancelled;
+
+    private BackgroundUpload(FileFingerprints.FileFingerprint fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+
+    private void cancel() {
+      cancelled = true;
+
+      // not started yet, it sees the flag when it does
+      Thread thread = runner;
+      if(thread != null) thread.interrupt();
+    }
+
+  }
+
+  private static class PullTasks {
+
+    private final Set<Future<?>> futures = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    private void add(Future<?> future) {
+      futures.add(future);
+
+      // cancelled while this one was being submitted
+      if(cancelled) future.cancel(true);
+    }
+
+    private void remove(Future<?> future) {
+      futures.remove(future);
+    }
+
+    private void cancel() {
+      cancelled = true;
+      futures.forEach(future -> future.cancel(true));
+    }
+
+    private void checkCancelled() {
+      if(cancelled) throw new CancellationException("Pull cancelled");
+    }
+
+  }
+
 }
\ No newline at end of file
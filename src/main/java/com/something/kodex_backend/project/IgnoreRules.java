@@ -0,0 +1,241 @@
+package com.something.kodex_backend.project;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// .gitignore and .kodexignore rules of a project, with gitignore semantics
+//  - a file in any folder applies to that folder and everything below it
+//  - patterns without a slash match at any depth, the others from their folder
+//  - a trailing slash matches folders only, ! re-includes, the last match wins
+//  - .kodexignore is read after .gitignore so it can override it
+// rules are compiled to regexes the first time a folder is looked at, and walks
+// skip ignored folders instead of listing them and filtering afterwards
+@Slf4j
+@Component
+public class IgnoreRules {
+
+  public static final String GIT_IGNORE = ".gitignore";
+  public static final String KODEX_IGNORE = ".kodexignore";
+  // files being pulled are written next to their target under this prefix first
+  public static final String TEMP_PREFIX = ".kodex-tmp-";
+
+  // ignored in every project on top of its own rules, comma separated
+  @Value("${kodex.sync.default-ignores:.git/objects/}")
+  private List<String> defaultIgnores;
+
+  // (projectRoot, (folder relative to it, rules read from that folder))
+  private final ConcurrentHashMap<Path, ConcurrentHashMap<String, List<Rule>>> projects = new ConcurrentHashMap<> ();
+
+  public static boolean isIgnoreFile(String relativePath) {
+    String name = relativePath.substring(relativePath.lastIndexOf('/') + 1);
+
+    return name.equals(GIT_IGNORE) || name.equals(KODEX_IGNORE);
+  }
+
+  // true if the path or any folder above it is ignored
+  public boolean isIgnored(Path projectRoot, String relativePath, boolean directory) {
+    if(relativePath.isEmpty()) return false;
+
+    for(int slash = relativePath.indexOf('/'); slash != -1; slash = relativePath.indexOf('/', slash + 1)) {
+      if(matches(projectRoot, relativePath.substring(0, slash), true)) return true;
+    }
+
+    return matches(projectRoot, relativePath, directory);
+  }
+
+  // every path under start (start included) which isn't ignored, ignored folders aren't entered
+  public List<Path> walk(Path projectRoot, Path start) throws IOException {
+    List<Path> paths = new ArrayList<> ();
+
+    if(!Files.exists(start)) return paths;
+    if(isIgnored(projectRoot, relativize(projectRoot, start), Files.isDirectory(start))) return paths;
+
+    Files.walkFileTree(start, new SimpleFileVisitor<> () {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        // folders above it were checked on the way down
+        if(!dir.equals(start) && matches(projectRoot, relativize(projectRoot, dir), true)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+
+        paths.add(dir);
+
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if(!matches(projectRoot, relativize(projectRoot, file), false)) paths.add(file);
+
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException ex) {
+        // deleted while walking
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    return paths;
+  }
+
+  // called when an ignore file of the project changed (or the project is closed)
+  public void invalidate(Path projectRoot) {
+    projects.remove(projectRoot);
+  }
+
+  // checks only the path itself, the folders above it must not be ignored
+  private boolean matches(Path projectRoot, String relativePath, boolean directory) {
+    if(!directory && relativePath.substring(relativePath.lastIndexOf('/') + 1).startsWith(TEMP_PREFIX)) return true;
+
+    boolean ignored = false;
+    String folder = "";
+
+    // rules of the root first, then of every folder on the way down
+    while(true) {
+      String inFolder = folder.isEmpty() ? relativePath : relativePath.substring(folder.length() + 1);
+
+      for(Rule rule : rules(projectRoot, folder)) {
+        if(rule.matches(inFolder, directory)) ignored = !rule.negated();
+      }
+
+      int slash = relativePath.indexOf('/', folder.isEmpty() ? 0 : folder.length() + 1);
+      if(slash == -1) return ignored;
+
+      folder = relativePath.substring(0, slash);
+    }
+  }
+
+  private List<Rule> rules(Path projectRoot, String folder) {
+    return projects.computeIfAbsent(projectRoot, k -> new ConcurrentHashMap<> ())
+      .computeIfAbsent(folder, k -> load(projectRoot, folder));
+  }
+
+  private List<Rule> load(Path projectRoot, String folder) {
+    List<Rule> rules = new ArrayList<> ();
+
+    if(folder.isEmpty()) {
+      defaultIgnores.stream().map(String::trim).map(Rule::parse).forEach(rule -> {
+        if(rule != null) rules.add(rule);
+      });
+    }
+
+    Path dir = projectRoot.resolve(folder);
+
+    for(String name : List.of(GIT_IGNORE, KODEX_IGNORE)) {
+      Path file = dir.resolve(name);
+
+      if(!Files.isRegularFile(file)) continue;
+
+      try {
+        for(String line : Files.readAllLines(file)) {
+          Rule rule = Rule.parse(line);
+
+          if(rule != null) rules.add(rule);
+        }
+      } catch(IOException ex) {
+        log.warn("Failed to read ignore file {}", file, ex);
+      }
+    }
+
+    return rules;
+  }
+
+  private static String relativize(Path projectRoot, Path path) {
+    return projectRoot.relativize(path).toString();
+  }
+
+  private record Rule(Pattern pattern, boolean negated, boolean directoryOnly) {
+
+    private boolean matches(String relativePath, boolean directory) {
+      if(directoryOnly && !directory) return false;
+
+      return pattern.matcher(relativePath).matches();
+    }
+
+    // null for blank lines and comments
+    private static Rule parse(String line) {
+      // trailing spaces don't count unless escaped
+      line = line.replaceAll("(?<!\\\\)\\s+$", "");
+
+      if(line.isEmpty() || line.startsWith("#")) return null;
+
+      boolean negated = line.startsWith("!");
+      if(negated) line = line.substring(1);
+      // \# and \! are literal
+      if(line.startsWith("\\#") || line.startsWith("\\!")) line = line.substring(1);
+
+      boolean directoryOnly = line.endsWith("/");
+      if(directoryOnly) line = line.substring(0, line.length() - 1);
+
+      // a slash anywhere but at the end ties the pattern to its folder
+      boolean anchored = line.contains("/");
+      if(line.startsWith("/")) line = line.substring(1);
+
+      if(line.isEmpty()) return null;
+
+      String regex = (anchored ? "" : "(?:.*/)?") + toRegex(line);
+
+      return new Rule(Pattern.compile(regex), negated, directoryOnly);
+    }
+
+    private static String toRegex(String glob) {
+      StringBuilder regex = new StringBuilder();
+      int length = glob.length();
+
+      for(int i = 0; i < length; i++) {
+        char c = glob.charAt(i);
+
+        if(c == '*' && i + 1 < length && glob.charAt(i + 1) == '*') {
+          boolean atStart = i == 0 || glob.charAt(i - 1) == '/';
+          boolean beforeSlash = i + 2 < length && glob.charAt(i + 2) == '/';
+
+          if(atStart && beforeSlash) {
+            // "**/" is zero or more folders
+            regex.append("(?:.*/)?");
+            i += 2;
+          } else {
+            // "/**" at the end is everything inside, any other "**" is just "*" across slashes
+            regex.append(".*");
+            i++;
+          }
+        } else if(c == '*') {
+          regex.append("[^/]*");
+        } else if(c == '?') {
+          regex.append("[^/]");
+        } else if(c == '[') {
+          int end = glob.indexOf(']', i + 2);
+
+          if(end == -1) {
+            regex.append("\\[");
+            continue;
+          }
+
+          String set = glob.substring(i + 1, end);
+          if(set.startsWith("!")) set = "^" + set.substring(1);
+
+          regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+          i = end;
+        } else if(c == '\\' && i + 1 < length) {
+          regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+        } else {
+          regex.append(Pattern.quote(String.valueOf(c)));
+        }
+      }
+
+      return regex.toString();
+    }
+
+  }
+
+}
\ No newline at end of file
@@ -40,6 +40,14 @@ public class PathIndex {
       .removeIf(path -> path.equals(relativePath) || path.startsWith(prefix));
   }
 
+  public void removePath(Integer projectId, String relativePath) {
+    remove(projectId, hash(relativePath));
+  }
+
+  public boolean hasProject(Integer projectId) {
+    return index.containsKey(projectId);
+  }
+
   public void clearProject(Integer projectId) {
     index.remove(projectId);
   }
@@ -1,7 +1,9 @@
 package com.something.kodex_backend.project;
 
+import com.something.kodex_backend.terminal.DockerService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.FileSystemUtils;
 
@@ -10,9 +12,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 @Service
 @Slf4j
@@ -22,15 +28,62 @@ public class ProjectMountService {
   private final ProjectRepository projectRepository;
   private final FileSyncEngine fileSyncEngine;
   private final SyncScheduler syncScheduler;
+  private final SyncCoordinator syncCoordinator;
   private final ConcurrentHashMap<Integer, String> activeSessions = new ConcurrentHashMap<> ();
+  // (projectId, lock held while the project is opened, or its local copy evicted)
+  private final ConcurrentHashMap<Integer, ReentrantLock> openLocks = new ConcurrentHashMap<> ();
   private final PathIndex pathIndex;
   private final ProjectUtil projectUtil;
+  private final SyncJournal syncJournal;
+  private final DockerService dockerService;
+
+  // number of closed projects whose local folder is kept around for a fast reopen
+  @Value("${kodex.sync.retained-projects:16}")
+  private int retainedProjects;
+
+  // start the user's container while the project is pulled, so the first terminal doesn't wait for it
+  @Value("${kodex.terminal.prewarm:true}")
+  private boolean prewarmContainers;
 
   private final static Path LOCAL_ROOT = Path.of("/tmp/kodex/projects");
 
+  // opening a project which is open already (a page refresh, a terminal reattaching) only
+  // brings in what changed on drive, through the coordinator like any other push
+  // opens of the same project run one at a time
   public void openProject(
     String accessToken,
     Integer projectId
+  ) throws IOException, ExecutionException, InterruptedException {
+    ReentrantLock openLock = openLock(projectId);
+
+    openLock.lockInterruptibly();
+
+    try {
+      String projectDriveId = activeSessions.get(projectId);
+
+      if(projectDriveId != null) {
+        log.info("Project {} is open already, pulling changes from drive", projectId);
+
+        try {
+          syncCoordinator.push(projectId, projectDriveId, Set.of());
+        } catch(IOException | RuntimeException ex) {
+          // it's open and synced regularly anyway
+          log.warn("Failed to pull changes of open project {}", projectId, ex);
+        }
+
+        return;
+      }
+
+      pullAndOpen(accessToken, projectId);
+    } finally {
+      openLock.unlock();
+    }
+  }
+
+  // a project which isn't open, never releases or discards an open one
+  private void pullAndOpen(
+    String accessToken,
+    Integer projectId
   ) throws IOException, ExecutionException, InterruptedException {
     log.info("Opening project {}", projectId);
 
@@ -40,16 +93,43 @@ public class ProjectMountService {
     String projectDriveId = project.getGoogleDriveId();
 
     Path localPath = LOCAL_ROOT.resolve(projectId.toString());
+    // a folder kept from an earlier session may have edits which weren't pushed yet
+    boolean retained = fileSyncEngine.hasLocalCopy(projectId);
+
+    String username = project.getUser().getUsername();
+    boolean prewarmed = false;
+
+    if(prewarmContainers) {
+      // created here first, a folder docker creates for the bind mount is owned by root
+      Files.createDirectories(localPath);
+      prewarmed = dockerService.prewarm(username, localPath, projectId);
+    }
 
     try {
       fileSyncEngine.pull(accessToken, projectId, projectDriveId);
     } catch(Exception ex) {
-      log.error("Pull failed for project '{}', cleaning up remaining local files", projectId, ex);
-      deleteLocalDirectory(localPath);
+      if(retained) {
+        log.error("Pull failed for project '{}', keeping its local copy for the next open", projectId, ex);
+        fileSyncEngine.release(projectId);
+      } else {
+        log.error("Pull failed for project '{}', cleaning up remaining local files", projectId, ex);
+        fileSyncEngine.discard(projectId);
+      }
+
+      if(prewarmed) {
+        try {
+          dockerService.discardPrewarmed(username, projectId);
+        } catch(RuntimeException removeEx) {
+          log.error("Failed to remove container prewarmed for project '{}'", projectId, removeEx);
+        }
+      }
 
       throw ex;
     }
 
+    // until the last push on close goes through, the local copy isn't evicted
+    syncJournal.markUnpushed(projectId);
+    syncCoordinator.open(projectId);
     activeSessions.put(projectId, projectDriveId);
     syncScheduler.startScheduling(projectId, projectDriveId);
 
@@ -61,7 +141,33 @@ public class ProjectMountService {
   ) throws IOException, InterruptedException {
     log.info("manual save triggered for project '{}'", projectId);
 
-    fileSyncEngine.push(projectId, getActiveFolderDriveId(projectId));
+    // joins the scheduled push if one is running, instead of racing it
+    syncCoordinator.push(projectId, getActiveFolderDriveId(projectId), null);
+    // a manual save is done once the big files are on drive too
+    fileSyncEngine.awaitBackgroundUploads(projectId);
+  }
+
+  // a file saved from the editor, the user is waiting on this one so it's pushed right away
+  // instead of after the debounce, and first if it has to share a push with other files
+  // the save itself doesn't wait for drive, the scheduler pushes it (and retries a failure)
+  public void markSaved(Integer projectId, Path filePath) {
+    String relativePath = LOCAL_ROOT.resolve(projectId.toString()).relativize(filePath).toString();
+
+    fileSyncEngine.markImportant(projectId, relativePath);
+    syncScheduler.pushSoon(projectId, relativePath);
+  }
+
+  // a big project is opened with placeholders, a file read before its download
+  // got to it is downloaded right away
+  public void hydrate(Integer projectId, Path filePath) throws IOException, InterruptedException {
+    String relativePath = LOCAL_ROOT.resolve(projectId.toString()).relativize(filePath).toString();
+
+    fileSyncEngine.hydrate(projectId, relativePath);
+  }
+
+  // the container reads the folder directly, so it can only wait for all of it
+  public void awaitHydration(Integer projectId) throws InterruptedException {
+    fileSyncEngine.awaitHydration(projectId);
   }
 
   public void closeProject(
@@ -69,20 +175,37 @@ public class ProjectMountService {
   ) throws IOException, InterruptedException {
     log.info("Closing project '{}'", projectId);
 
+    // closed while it's still opening, stop the pull and let
+    // openProject clean up after the failed pull as usual
+    if(!activeSessions.containsKey(projectId) && fileSyncEngine.cancelPull(projectId)) {
+      log.info("Project '{}' closed before it finished opening", projectId);
+
+      return;
+    }
+
     String projectDriveId = getActiveFolderDriveId(projectId);
 
     syncScheduler.stopScheduling(projectId);
 
     try {
-      fileSyncEngine.cleanup(projectId, projectDriveId);
+      // waits for a push in flight (e.g. a manual save), then pushes one last time
+      syncCoordinator.close(projectId, projectDriveId);
+      syncJournal.clearUnpushed(projectId);
     } finally {
       // always remove project from active session
       activeSessions.remove(projectId);
+      discardPrewarmed(projectId);
     }
 
+    evictRetainedProjects();
+
     log.info("Project '{}' closed", projectId);
   }
 
+  public boolean isProjectOpen(Integer projectId) {
+    return activeSessions.containsKey(projectId);
+  }
+
   public String createFolder(
     Integer projectId,
     String parentHash,
@@ -166,6 +289,20 @@ public class ProjectMountService {
     return LOCAL_ROOT.resolve(projectId.toString()).resolve(relativePath);
   }
 
+  // a container prewarmed for the project which never got a terminal has its folder
+  // mounted, it's not handed to the terminal of another project but it'd stay up
+  private void discardPrewarmed(Integer projectId) {
+    if(!prewarmContainers) return;
+
+    try {
+      projectRepository.findById(projectId).ifPresent(
+        project -> dockerService.discardPrewarmed(project.getUser().getUsername(), projectId)
+      );
+    } catch(RuntimeException ex) {
+      log.error("Failed to remove container prewarmed for project '{}'", projectId, ex);
+    }
+  }
+
   private String getActiveFolderDriveId(Integer projectId) {
     String projectDriveId = activeSessions.get(projectId);
 
@@ -176,16 +313,53 @@ public class ProjectMountService {
     return projectDriveId;
   }
 
-  private void deleteLocalDirectory(Path path) throws IOException {
-    if(!Files.exists(path)) return;
-
-    try {
-      FileSystemUtils.deleteRecursively(path);
+  // closed projects keep their local folder so reopening them is cheap,
+  // only the most recently used ones are kept though
+  private void evictRetainedProjects() {
+    List<Integer> retained;
+
+    try(Stream<Path> projects = Files.list(LOCAL_ROOT)) {
+      retained = projects
+        .map(path -> path.getFileName().toString())
+        .filter(name -> name.chars().allMatch(Character::isDigit))
+        .map(Integer::valueOf)
+        .filter(projectId -> !activeSessions.containsKey(projectId))
+        .sorted(Comparator.comparingLong(
+          (Integer projectId) -> syncJournal.lastModified(projectId.toString())
+        ).reversed())
+        .toList();
     } catch(IOException ex) {
-      log.error("project deletion failed for path: {}", path, ex);
+      log.error("Failed to list retained projects", ex);
 
-      throw ex;
+      return;
+    }
+
+    for(Integer projectId : retained.subList(Math.min(retainedProjects, retained.size()), retained.size())) {
+      ReentrantLock openLock = openLock(projectId);
+
+      // being opened (and pulled into) right now
+      if(!openLock.tryLock()) continue;
+
+      try {
+        if(activeSessions.containsKey(projectId)) continue;
+
+        if(syncJournal.hasUnpushed(projectId)) {
+          log.warn("Not evicting project {}, its local copy has changes which weren't pushed", projectId);
+
+          continue;
+        }
+
+        fileSyncEngine.discard(projectId);
+      } catch(IOException ex) {
+        log.error("Failed to evict retained project {}", projectId, ex);
+      } finally {
+        openLock.unlock();
+      }
     }
   }
 
+  private ReentrantLock openLock(Integer projectId) {
+    return openLocks.computeIfAbsent(projectId, k -> new ReentrantLock());
+  }
+
 }
\ No newline at end of file
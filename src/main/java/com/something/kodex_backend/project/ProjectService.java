@@ -225,7 +225,8 @@ public class ProjectService {
   public ResponseEntity<String> getProjectStructure(Integer projectId) {
     Path localProjectPath = LOCAL_ROOT.resolve(projectId.toString());
 
-    if(!Files.exists(localProjectPath)) {
+    // closed projects may still have a local folder, so check the session instead
+    if(!projectMountService.isProjectOpen(projectId)) {
       throw new IllegalArgumentException("Project with project id: " + projectId + " is not opened!");
     }
 
@@ -319,10 +320,12 @@ public class ProjectService {
     Path filePath = projectMountService.resolvePath(projectId, parentHash).resolve(fileName);
 
     try {
+      projectMountService.hydrate(projectId, filePath);
+
       String content = Files.readString(filePath);
 
       return ResponseEntity.ok(content);
-    } catch(IOException ex) {
+    } catch(IOException | InterruptedException ex) {
       throw new RuntimeException(ex);
     }
   }
@@ -337,6 +340,7 @@ public class ProjectService {
 
     try {
       Files.writeString(filePath, content);
+      projectMountService.markSaved(projectId, filePath);
 
       return ResponseEntity.ok().build();
     } catch(IOException ex) {
@@ -1,5 +1,6 @@
 package com.something.kodex_backend.project;
 
+import com.something.kodex_backend.oauth.CustomGoogleTokenResponse;
 import com.something.kodex_backend.oauth.OAuthenticationUtil;
 import com.something.kodex_backend.token.TokenRepository;
 import jakarta.servlet.http.HttpServletRequest;
@@ -15,6 +16,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 
 @Slf4j
@@ -25,6 +28,14 @@ public class ProjectUtil {
   private final OAuthenticationUtil oAuthenticationUtil;
   private final TokenRepository tokenRepository;
   private final ProjectRepository projectRepository;
+  private final IgnoreRules ignoreRules;
+
+  // a cached token isn't handed out if it expires within this window, so it
+  // doesn't expire in the middle of processing
+  private static final long TOKEN_EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  // (userId, access token minted for that user)
+  private final ConcurrentHashMap<Integer, CachedAccessToken> accessTokens = new ConcurrentHashMap<> ();
 
   public String validateAccessTokenAndGetNewToken(HttpServletRequest request, Integer projectId) {
     validateAccessToken(request);
@@ -38,13 +49,7 @@ public class ProjectUtil {
 
   public String getAccessTokenForUser(Integer projectId) {
 
-    Integer userId = projectRepository.findById(projectId).orElseThrow(
-      () -> {
-        log.error("Project not found with project id {}", projectId);
-
-        return new IllegalArgumentException("Invalid project with id " + projectId);
-      }
-    ).getUser().getId();
+    Integer userId = getUserIdForProject(projectId);
 
     String refreshToken = tokenRepository
       .findAllOAuthRefreshTokensByUserId(userId)
@@ -52,7 +57,35 @@ public class ProjectUtil {
       .getFirst()
       .getValue();
 
-    return oAuthenticationUtil.getAccessToken(refreshToken);
+    // every push used to mint a new token, which also meant a new drive client
+    // reuse the last one while it's still good for a while
+    CachedAccessToken cached = accessTokens.get(userId);
+    long now = System.currentTimeMillis();
+
+    if(cached != null && cached.refreshToken().equals(refreshToken) && cached.expiresAt() - now > TOKEN_EXPIRY_MARGIN_MILLIS) {
+      return cached.accessToken();
+    }
+
+    CustomGoogleTokenResponse tokenResponse = oAuthenticationUtil.refreshAccessToken(refreshToken);
+
+    // without an expiry we can't tell how long it's good for, so don't reuse it
+    long expiresAt = tokenResponse.getExpiresIn() == null
+      ? now
+      : now + TimeUnit.SECONDS.toMillis(tokenResponse.getExpiresIn());
+
+    accessTokens.put(userId, new CachedAccessToken(refreshToken, tokenResponse.getAccessToken(), expiresAt));
+
+    return tokenResponse.getAccessToken();
+  }
+
+  public Integer getUserIdForProject(Integer projectId) {
+    return projectRepository.findById(projectId).orElseThrow(
+      () -> {
+        log.error("Project not found with project id {}", projectId);
+
+        return new IllegalArgumentException("Invalid project with id " + projectId);
+      }
+    ).getUser().getId();
   }
 
   public void validateAccessToken(HttpServletRequest request) {
@@ -92,6 +125,10 @@ public class ProjectUtil {
     try(Stream<Path> paths = Files.walk(dir, 1)) {
       List<Pair<Path, FileType>> children = paths
         .filter(path -> !path.equals(dir))
+        // build outputs and such aren't synced, so they aren't shown either
+        .filter(path -> !ignoreRules.isIgnored(
+          projectRoot, projectRoot.relativize(path).toString(), Files.isDirectory(path)
+        ))
         .map(path ->
           new Pair<>(path.getFileName(), Files.isDirectory(path) ? FileType.FOLDER : FileType.FILE)
         )
@@ -157,4 +194,7 @@ public class ProjectUtil {
     );
   }
 
+  private record CachedAccessToken(String refreshToken, String accessToken, long expiresAt) {
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,299 @@
+package com.something.kodex_backend.project;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// watches the local folders of open projects and collects the paths changed in them
+// so a push only has to look at those instead of walking the whole project
+@Slf4j
+@Service
+public class ProjectWatcher {
+
+  private static final Path LOCAL_ROOT = Path.of("/tmp/kodex/projects");
+
+  private final IgnoreRules ignoreRules;
+  private final WatchService watchService;
+  private Thread watchThread;
+
+  // (watchKey, directory it watches)
+  private final ConcurrentHashMap<WatchKey, WatchedDirectory> watchedDirectories = new ConcurrentHashMap<> ();
+  // (projectId, paths changed since the last drain)
+  private final ConcurrentHashMap<Integer, DirtySet> dirtySets = new ConcurrentHashMap<> ();
+
+  public ProjectWatcher(IgnoreRules ignoreRules) throws IOException {
+    this.ignoreRules = ignoreRules;
+    watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  // the thread is only made once the watcher is fully constructed, it must never see it half built
+  @PostConstruct
+  public void start() {
+    watchThread = new Thread(this::processEvents, "project-watcher");
+    watchThread.setDaemon(true);
+    watchThread.start();
+  }
+
+  public void watch(Integer projectId) {
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+
+    dirtySets.putIfAbsent(projectId, new DirtySet());
+
+    try {
+      registerRecursively(projectId, projectRoot);
+    } catch(IOException ex) {
+      // without a watch every push has to walk everything, until the watch is in place
+      log.error("Failed to watch project {}, falling back to full pushes", projectId, ex);
+      markUnwatched(projectId);
+    }
+  }
+
+  public void unwatch(Integer projectId) {
+    watchedDirectories.entrySet().removeIf(entry -> {
+      if(!entry.getValue().projectId().equals(projectId)) return false;
+
+      entry.getKey().cancel();
+
+      return true;
+    });
+
+    dirtySets.remove(projectId);
+  }
+
+  // true if there are changes and nothing happened for the debounce period
+  // a project that keeps changing is still reported once its oldest change is maxDelay old
+  public boolean isReady(Integer projectId, long debounceMillis, long maxDelayMillis) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return false;
+
+    synchronized(dirtySet) {
+      if(dirtySet.paths.isEmpty()) return false;
+
+      long now = System.currentTimeMillis();
+
+      return now - dirtySet.lastEventAt >= debounceMillis
+        || now - dirtySet.firstEventAt >= maxDelayMillis;
+    }
+  }
+
+  // true if anything changed since the last drain, settled or not
+  public boolean hasChanges(Integer projectId) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return false;
+
+    synchronized(dirtySet) {
+      return !dirtySet.paths.isEmpty() || dirtySet.overflowed;
+    }
+  }
+
+  public Set<String> drain(Integer projectId) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return Set.of();
+
+    synchronized(dirtySet) {
+      Set<String> paths = dirtySet.paths;
+      dirtySet.paths = new HashSet<> ();
+
+      return paths;
+    }
+  }
+
+  // true if events were lost, the caller has to fall back to a full walk
+  // a project whose watch couldn't be set up (inotify limit and such) says so every time,
+  // its watch is retried on each call until it's in place
+  public boolean consumeOverflow(Integer projectId) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return false;
+
+    int watchFailures;
+    synchronized(dirtySet) {
+      watchFailures = dirtySet.watchFailures;
+    }
+
+    if(watchFailures > 0) retryWatch(projectId, dirtySet, watchFailures);
+
+    synchronized(dirtySet) {
+      boolean overflowed = dirtySet.overflowed || dirtySet.watchFailures > 0;
+      dirtySet.overflowed = false;
+
+      return overflowed;
+    }
+  }
+
+  public void markOverflow(Integer projectId) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return;
+
+    synchronized(dirtySet) {
+      dirtySet.overflowed = true;
+    }
+  }
+
+  // put back paths which couldn't be pushed, so they're retried next time
+  public void markDirty(Integer projectId, Collection<String> relativePaths) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return;
+
+    synchronized(dirtySet) {
+      relativePaths.forEach(dirtySet::add);
+    }
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    if(watchThread != null) watchThread.interrupt();
+    watchService.close();
+  }
+
+  private void processEvents() {
+    while(!Thread.currentThread().isInterrupted()) {
+      WatchKey key;
+
+      try {
+        key = watchService.take();
+      } catch(InterruptedException | ClosedWatchServiceException ex) {
+        return;
+      }
+
+      WatchedDirectory watched = watchedDirectories.get(key);
+
+      if(watched == null) {
+        key.cancel();
+        continue;
+      }
+
+      for(WatchEvent<?> event : key.pollEvents()) {
+        handleEvent(watched, event);
+      }
+
+      // the directory itself is gone, its deletion shows up as an event in the parent
+      if(!key.reset()) {
+        watchedDirectories.remove(key);
+      }
+    }
+  }
+
+  private void handleEvent(WatchedDirectory watched, WatchEvent<?> event) {
+    DirtySet dirtySet = dirtySets.get(watched.projectId());
+
+    if(dirtySet == null) return;
+
+    if(event.kind() == OVERFLOW) {
+      log.warn("Watch events overflowed for project {}", watched.projectId());
+      markOverflow(watched.projectId());
+
+      return;
+    }
+
+    Path changed = watched.directory().resolve((Path) event.context());
+    Path projectRoot = LOCAL_ROOT.resolve(watched.projectId().toString());
+    String relativePath = projectRoot.relativize(changed).toString();
+
+    if(IgnoreRules.isIgnoreFile(relativePath)) {
+      // what's ignored changed, only a full walk finds the files which aren't anymore
+      ignoreRules.invalidate(projectRoot);
+      markOverflow(watched.projectId());
+    } else if(ignoreRules.isIgnored(projectRoot, relativePath, Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS))) {
+      return;
+    }
+
+    synchronized(dirtySet) {
+      dirtySet.add(relativePath);
+    }
+
+    // new (or moved in) folders need their own watch, anything created in them
+    // before the watch was in place is caught by the push walking the folder
+    if(event.kind() == ENTRY_CREATE && Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+      try {
+        registerRecursively(watched.projectId(), changed);
+      } catch(IOException ex) {
+        log.error("Failed to watch new folder {}", changed, ex);
+        markUnwatched(watched.projectId());
+      }
+    }
+  }
+
+  private void markUnwatched(Integer projectId) {
+    DirtySet dirtySet = dirtySets.get(projectId);
+
+    if(dirtySet == null) return;
+
+    synchronized(dirtySet) {
+      dirtySet.watchFailures++;
+    }
+  }
+
+  // registering a folder watched already just gives its key again, so the whole project is gone over
+  private void retryWatch(Integer projectId, DirtySet dirtySet, int watchFailures) {
+    try {
+      registerRecursively(projectId, LOCAL_ROOT.resolve(projectId.toString()));
+    } catch(IOException ex) {
+      log.debug("Still can't watch project {}", projectId, ex);
+
+      return;
+    }
+
+    synchronized(dirtySet) {
+      // another registration failed meanwhile, it's retried next time
+      if(dirtySet.watchFailures != watchFailures) return;
+
+      dirtySet.watchFailures = 0;
+      // what changed while it wasn't watched still needs the full walk
+      dirtySet.overflowed = true;
+    }
+
+    log.info("Watching project {} again", projectId);
+  }
+
+  // ignored folders (build outputs and such) aren't watched at all
+  private void registerRecursively(Integer projectId, Path start) throws IOException {
+    Path projectRoot = LOCAL_ROOT.resolve(projectId.toString());
+
+    for(Path dir : ignoreRules.walk(projectRoot, start)) {
+      if(!Files.isDirectory(dir)) continue;
+
+      WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+      watchedDirectories.put(key, new WatchedDirectory(projectId, dir));
+    }
+  }
+
+  private record WatchedDirectory(Integer projectId, Path directory) {
+  }
+
+  private static class DirtySet {
+
+    private Set<String> paths = new HashSet<> ();
+    private long firstEventAt;
+    private long lastEventAt;
+    private boolean overflowed;
+    // failed registrations since the project was last fully watched
+    private int watchFailures;
+
+    private void add(String relativePath) {
+      long now = System.currentTimeMillis();
+
+      if(paths.isEmpty()) firstEventAt = now;
+
+      paths.add(relativePath);
+      lastEventAt = now;
+    }
+
+  }
+
+}
@@ -0,0 +1,168 @@
+package com.something.kodex_backend.project;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+// every push of a project goes through here (scheduled ones, manual saves and the last
+// one on close), so there's only ever one push of a project running
+// a push asked for while one is running isn't started next to it, it's merged with
+// everything else asked for in the meantime into the next run, which runs once
+// a project only has a lane from open to close, a push asked for outside of that (one
+// waiting while the project closes, or coming in after) does nothing, the sync state
+// of the project is already unloaded by then and a push would work against nothing
+@Service
+@RequiredArgsConstructor
+public class SyncCoordinator {
+
+  private final FileSyncEngine fileSyncEngine;
+
+  // (projectId, its push lane), a closed lane stays until the project is opened again
+  private final ConcurrentHashMap<Integer, Lane> lanes = new ConcurrentHashMap<> ();
+
+  // pushes of the project are taken from now on, until close
+  public void open(Integer projectId) {
+    lanes.compute(projectId, (k, lane) -> lane == null || lane.isClosed() ? new Lane() : lane);
+  }
+
+  // a null collection means everything, like FileSyncEngine.push
+  // returns without pushing if the project isn't open, or closes before this push gets its turn
+  public void push(
+    Integer projectId,
+    String projectDriveId,
+    Collection<String> changedPaths
+  ) throws IOException, InterruptedException {
+    Lane lane = lanes.get(projectId);
+
+    if(lane == null) return;
+
+    Run run;
+
+    synchronized(lane) {
+      if(lane.closed) return;
+
+      if(lane.next == null) lane.next = new Run();
+
+      run = lane.next;
+      run.add(changedPaths);
+    }
+
+    lane.lock.lockInterruptibly();
+
+    try {
+      // whoever of the callers sharing a run gets here first runs it, the others just wait for it
+      // close completes the run which was still waiting, so nothing runs after it
+      if(!run.done.isDone()) {
+        synchronized(lane) {
+          // later callers start a new run
+          if(lane.next == run) lane.next = null;
+        }
+
+        execute(projectId, projectDriveId, run);
+      }
+    } finally {
+      lane.lock.unlock();
+    }
+
+    await(run);
+  }
+
+  // waits for the push in flight, then does the last push and cleans up the project
+  // the lane is closed even if that fails, the project's state is gone either way
+  public void close(Integer projectId, String projectDriveId) throws IOException, InterruptedException {
+    Lane lane = lanes.computeIfAbsent(projectId, k -> new Lane());
+
+    lane.lock.lockInterruptibly();
+
+    try {
+      // anything still waiting to run is covered by the full push of cleanup,
+      // and later pushes see the lane closed
+      Run pending;
+      synchronized(lane) {
+        lane.closed = true;
+        pending = lane.next;
+        lane.next = null;
+      }
+
+      try {
+        fileSyncEngine.cleanup(projectId, projectDriveId);
+
+        if(pending != null) pending.done.complete(null);
+      } catch(IOException | InterruptedException | RuntimeException ex) {
+        if(pending != null) pending.done.completeExceptionally(ex);
+
+        throw ex;
+      }
+    } finally {
+      lane.lock.unlock();
+    }
+  }
+
+  private void execute(Integer projectId, String projectDriveId, Run run) {
+    try {
+      if(run.full) {
+        fileSyncEngine.push(projectId, projectDriveId);
+      } else {
+        fileSyncEngine.push(projectId, projectDriveId, run.paths);
+      }
+
+      run.done.complete(null);
+    } catch(Exception ex) {
+      run.done.completeExceptionally(ex);
+    }
+  }
+
+  private static void await(Run run) throws IOException, InterruptedException {
+    try {
+      run.done.get();
+    } catch(ExecutionException ex) {
+      Throwable cause = ex.getCause();
+
+      if(cause instanceof IOException ioException) throw ioException;
+      if(cause instanceof InterruptedException interruptedException) throw interruptedException;
+      if(cause instanceof RuntimeException runtimeException) throw runtimeException;
+
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private static class Lane {
+
+    // held by the push running now
+    private final ReentrantLock lock = new ReentrantLock(true);
+    // the run the next callers join, guarded by the lane itself
+    private Run next;
+    // guarded by the lane itself
+    private boolean closed;
+
+    private synchronized boolean isClosed() {
+      return closed;
+    }
+
+  }
+
+  private static class Run {
+
+    private final CompletableFuture<Void> done = new CompletableFuture<> ();
+    private final Set<String> paths = new HashSet<> ();
+    private boolean full;
+
+    private void add(Collection<String> changedPaths) {
+      if(changedPaths == null) {
+        full = true;
+      } else {
+        paths.addAll(changedPaths);
+      }
+    }
+
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,449 @@
+package com.something.kodex_backend.project;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// append only, on disk journal of the sync state of every project
+// each project gets two files:
+//  <id>.snapshot - the compacted state, rewritten atomically
+//  <id>.journal  - every change made after the last snapshot
+// and <id>.unpushed while the project is open, it's removed once the last push on close
+// went through, so a local copy left with edits drive doesn't have (the push failed,
+// or the process died) is known as such after a restart too
+// the state is rebuilt by loading the snapshot and replaying the journal over it
+// records are tab separated lines:
+//  P path id md5 modifiedAt size - file synced
+//  R path                        - file removed
+//  F path id                     - folder known on drive
+//  G path                        - folder removed
+//  T token                       - drive changes page token
+//  U path uri size modifiedAt    - resumable upload in progress
+//  V path                        - resumable upload finished or dropped
+@Slf4j
+@Component
+public class SyncJournal {
+
+  private static final String PUT = "P";
+  private static final String REMOVE = "R";
+  private static final String FOLDER_PUT = "F";
+  private static final String FOLDER_REMOVE = "G";
+  private static final String PAGE_TOKEN = "T";
+  private static final String UPLOAD_PUT = "U";
+  private static final String UPLOAD_REMOVE = "V";
+
+  @Value("${kodex.sync.state-dir:/tmp/kodex/sync-state}")
+  private Path stateDir;
+
+  // number of journal records after which the journal is folded into a new snapshot
+  @Value("${kodex.sync.journal-compact-threshold:2000}")
+  private int compactThreshold;
+
+  // (projectId, open journal of that project)
+  private final ConcurrentHashMap<Integer, ProjectJournal> journals = new ConcurrentHashMap<> ();
+
+  public boolean exists(String projectId) {
+    return Files.exists(snapshotPath(projectId)) || Files.exists(journalPath(projectId));
+  }
+
+  // last time anything was written for this project, 0 if nothing was
+  public long lastModified(String projectId) {
+    long lastModified = 0L;
+
+    for(Path path : List.of(snapshotPath(projectId), journalPath(projectId))) {
+      try {
+        if(Files.exists(path)) {
+          lastModified = Math.max(lastModified, Files.getLastModifiedTime(path).toMillis());
+        }
+      } catch(IOException ex) {
+        log.warn("Failed to read modified time of {}", path, ex);
+      }
+    }
+
+    return lastModified;
+  }
+
+  public void markUnpushed(Integer projectId) {
+    try {
+      Files.createDirectories(stateDir);
+
+      if(!Files.exists(unpushedPath(projectId))) Files.createFile(unpushedPath(projectId));
+    } catch(IOException ex) {
+      log.error("Failed to mark project {} as having unpushed changes", projectId, ex);
+    }
+  }
+
+  public void clearUnpushed(Integer projectId) {
+    try {
+      Files.deleteIfExists(unpushedPath(projectId));
+    } catch(IOException ex) {
+      log.error("Failed to clear unpushed mark of project {}", projectId, ex);
+    }
+  }
+
+  // the local copy may have edits which never made it to drive
+  public boolean hasUnpushed(Integer projectId) {
+    return Files.exists(unpushedPath(projectId));
+  }
+
+  public PersistedState load(Integer projectId) {
+    PersistedState result = new PersistedState();
+
+    // snapshot first, then whatever happened after it
+    replay(snapshotPath(projectId.toString()), result);
+    replay(journalPath(projectId.toString()), result);
+
+    return result;
+  }
+
+  // returns true if the journal has grown enough to be compacted
+  public boolean appendPut(Integer projectId, DriveFile driveFile) {
+    return journal(projectId).append(putRecord(driveFile));
+  }
+
+  public boolean appendRemove(Integer projectId, String relativePath) {
+    return journal(projectId).append(String.join("\t", REMOVE, escape(relativePath)));
+  }
+
+  public boolean appendFolderPut(Integer projectId, String relativePath, String folderId) {
+    return journal(projectId).append(String.join("\t", FOLDER_PUT, escape(relativePath), escape(folderId)));
+  }
+
+  public boolean appendFolderRemove(Integer projectId, String relativePath) {
+    return journal(projectId).append(String.join("\t", FOLDER_REMOVE, escape(relativePath)));
+  }
+
+  public boolean appendPageToken(Integer projectId, String pageToken) {
+    return journal(projectId).append(String.join("\t", PAGE_TOKEN, escape(pageToken)));
+  }
+
+  public boolean appendUploadPut(Integer projectId, UploadSession uploadSession) {
+    return journal(projectId).append(uploadRecord(uploadSession));
+  }
+
+  public boolean appendUploadRemove(Integer projectId, String relativePath) {
+    return journal(projectId).append(String.join("\t", UPLOAD_REMOVE, escape(relativePath)));
+  }
+
+  // write the whole state into a fresh snapshot and start an empty journal
+  // caller must make sure the state isn't modified while this runs
+  public void compact(
+    Integer projectId,
+    Map<String, DriveFile> files,
+    Map<String, String> folders,
+    Map<String, UploadSession> uploadSessions,
+    String pageToken
+  ) {
+    journal(projectId).compact(files, folders, uploadSessions, pageToken);
+  }
+
+  // close the open journal of a project, everything written so far stays on disk
+  public void close(Integer projectId) {
+    ProjectJournal journal = journals.remove(projectId);
+
+    if(journal != null) journal.close();
+  }
+
+  public void delete(Integer projectId) {
+    ProjectJournal journal = journals.remove(projectId);
+
+    if(journal != null) journal.close();
+
+    try {
+      Files.deleteIfExists(snapshotPath(projectId.toString()));
+      Files.deleteIfExists(journalPath(projectId.toString()));
+      Files.deleteIfExists(unpushedPath(projectId));
+    } catch(IOException ex) {
+      log.error("Failed to delete sync journal for project {}", projectId, ex);
+    }
+  }
+
+  private ProjectJournal journal(Integer projectId) {
+    return journals.computeIfAbsent(projectId, ProjectJournal::new);
+  }
+
+  private void replay(Path path, PersistedState result) {
+    if(!Files.exists(path)) return;
+
+    try {
+      for(String line : completeLines(path)) {
+        String[] parts = line.split("\t", -1);
+
+        if(parts[0].equals(PUT) && parts.length == 6) {
+          try {
+            DriveFile driveFile = new DriveFile(
+              unescape(parts[2]),
+              unescape(parts[1]),
+              unescape(parts[3]),
+              Long.parseLong(parts[4]),
+              Long.parseLong(parts[5])
+            );
+
+            result.getFiles().put(driveFile.relativePath(), driveFile);
+          } catch(NumberFormatException ex) {
+            log.warn("Skipping malformed journal record in {}", path);
+          }
+        } else if(parts[0].equals(REMOVE) && parts.length == 2) {
+          result.getFiles().remove(unescape(parts[1]));
+        } else if(parts[0].equals(FOLDER_PUT) && parts.length == 3) {
+          result.getFolders().put(unescape(parts[1]), unescape(parts[2]));
+        } else if(parts[0].equals(FOLDER_REMOVE) && parts.length == 2) {
+          result.getFolders().remove(unescape(parts[1]));
+        } else if(parts[0].equals(UPLOAD_PUT) && parts.length == 5) {
+          try {
+            UploadSession uploadSession = new UploadSession(
+              unescape(parts[1]),
+              unescape(parts[2]),
+              Long.parseLong(parts[3]),
+              Long.parseLong(parts[4])
+            );
+
+            result.getUploadSessions().put(uploadSession.relativePath(), uploadSession);
+          } catch(NumberFormatException ex) {
+            log.warn("Skipping malformed journal record in {}", path);
+          }
+        } else if(parts[0].equals(UPLOAD_REMOVE) && parts.length == 2) {
+          result.getUploadSessions().remove(unescape(parts[1]));
+        } else if(parts[0].equals(PAGE_TOKEN) && parts.length == 2) {
+          result.pageToken = unescape(parts[1]);
+        } else {
+          log.warn("Skipping malformed journal record in {}", path);
+        }
+      }
+    } catch(IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  // a record only counts once its new line is written, a torn write at the tail after a crash
+  // leaves a last line without one (maybe cut inside a character), that's dropped
+  private static List<String> completeLines(Path path) throws IOException {
+    byte[] bytes = Files.readAllBytes(path);
+    int end = lastLineEnd(bytes);
+
+    if(end == 0) return List.of();
+
+    return List.of(new String(bytes, 0, end - 1, StandardCharsets.UTF_8).split("\n", -1));
+  }
+
+  // length of the data up to and including the last new line
+  private static int lastLineEnd(byte[] bytes) {
+    int end = bytes.length;
+
+    while(end > 0 && bytes[end - 1] != '\n') end--;
+
+    return end;
+  }
+
+  private static String putRecord(DriveFile driveFile) {
+    return String.join("\t",
+      PUT,
+      escape(driveFile.relativePath()),
+      escape(driveFile.googleDriveId()),
+      escape(driveFile.md5Checksum()),
+      Long.toString(driveFile.modifiedAt()),
+      Long.toString(driveFile.size())
+    );
+  }
+
+  private static String uploadRecord(UploadSession uploadSession) {
+    return String.join("\t",
+      UPLOAD_PUT,
+      escape(uploadSession.relativePath()),
+      escape(uploadSession.sessionUri()),
+      Long.toString(uploadSession.size()),
+      Long.toString(uploadSession.modifiedAt())
+    );
+  }
+
+  private Path snapshotPath(String projectId) {
+    return stateDir.resolve(projectId + ".snapshot");
+  }
+
+  private Path journalPath(String projectId) {
+    return stateDir.resolve(projectId + ".journal");
+  }
+
+  private Path unpushedPath(Integer projectId) {
+    return stateDir.resolve(projectId + ".unpushed");
+  }
+
+  // tabs and new lines are field and record separators, so they can't appear raw
+  // null is written as a lone '\0' marker
+  private static String escape(String value) {
+    if(value == null) return "\\0";
+
+    return value
+      .replace("\\", "\\\\")
+      .replace("\t", "\\t")
+      .replace("\n", "\\n")
+      .replace("\r", "\\r");
+  }
+
+  private static String unescape(String value) {
+    if(value.equals("\\0")) return null;
+
+    StringBuilder result = new StringBuilder(value.length());
+
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+
+      if(c != '\\' || i == value.length() - 1) {
+        result.append(c);
+        continue;
+      }
+
+      char next = value.charAt(++i);
+      switch(next) {
+        case 't' -> result.append('\t');
+        case 'n' -> result.append('\n');
+        case 'r' -> result.append('\r');
+        default -> result.append(next);
+      }
+    }
+
+    return result.toString();
+  }
+
+  @Getter
+  public static class PersistedState {
+
+    private final Map<String, DriveFile> files = new HashMap<> ();
+    private final Map<String, String> folders = new HashMap<> ();
+    private final Map<String, UploadSession> uploadSessions = new HashMap<> ();
+    private String pageToken;
+
+    public boolean isEmpty() {
+      return files.isEmpty() && folders.isEmpty() && uploadSessions.isEmpty() && pageToken == null;
+    }
+
+  }
+
+  private class ProjectJournal {
+
+    private final Integer projectId;
+    private FileChannel channel;
+    private int records;
+
+    ProjectJournal(Integer projectId) {
+      this.projectId = projectId;
+    }
+
+    synchronized boolean append(String record) {
+      try {
+        if(channel == null) open();
+
+        // a single write per record, the page cache keeps it even if the process dies
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while(buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch(IOException ex) {
+        // losing the journal only costs a slower reopen, don't fail the sync for it
+        log.error("Failed to append to sync journal of project {}", projectId, ex);
+
+        return false;
+      }
+
+      return ++records >= compactThreshold;
+    }
+
+    synchronized void compact(
+      Map<String, DriveFile> files,
+      Map<String, String> folders,
+      Map<String, UploadSession> uploadSessions,
+      String pageToken
+    ) {
+      Path snapshot = snapshotPath(projectId.toString());
+      Path temp = stateDir.resolve(projectId + ".snapshot.tmp");
+
+      try {
+        Files.createDirectories(stateDir);
+
+        try(FileChannel out = FileChannel.open(
+          temp,
+          StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        )) {
+          StringBuilder builder = new StringBuilder();
+
+          for(DriveFile driveFile : files.values()) {
+            builder.append(putRecord(driveFile)).append('\n');
+          }
+
+          for(Map.Entry<String, String> folder : folders.entrySet()) {
+            builder.append(String.join("\t", FOLDER_PUT, escape(folder.getKey()), escape(folder.getValue())))
+              .append('\n');
+          }
+
+          for(UploadSession uploadSession : uploadSessions.values()) {
+            builder.append(uploadRecord(uploadSession)).append('\n');
+          }
+
+          if(pageToken != null) {
+            builder.append(String.join("\t", PAGE_TOKEN, escape(pageToken))).append('\n');
+          }
+
+          ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+          while(buffer.hasRemaining()) {
+            out.write(buffer);
+          }
+
+          out.force(true);
+        }
+
+        // if we die between the move and the truncate, the old journal is
+        // replayed over the new snapshot which is harmless
+        Files.move(temp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        if(channel == null) open();
+        channel.truncate(0);
+        channel.force(true);
+        records = 0;
+      } catch(IOException ex) {
+        log.error("Failed to compact sync journal of project {}", projectId, ex);
+      }
+    }
+
+    synchronized void close() {
+      if(channel == null) return;
+
+      try {
+        channel.close();
+      } catch(IOException ex) {
+        log.warn("Failed to close sync journal of project {}", projectId, ex);
+      }
+
+      channel = null;
+    }
+
+    private void open() throws IOException {
+      Files.createDirectories(stateDir);
+
+      Path path = journalPath(projectId.toString());
+
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+      // cut a torn tail off, or the next record would be glued onto it and lost with it
+      // only done once, when the journal is opened, so it's small by then
+      int end = lastLineEnd(Files.readAllBytes(path));
+      if(end < channel.size()) channel.truncate(end);
+    }
+
+  }
+
+}
@@ -1,58 +1,366 @@
 package com.something.kodex_backend.project;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+// a single thread looks at every open project on its own cadence and hands the
+// ones which need a push to a bounded pool of workers
+// a project is never queued or pushed twice at the same time, and projects which
+// waited the longest go first, so one slow project only ever holds up one worker
 @Service
 @Slf4j
 @RequiredArgsConstructor
 public class SyncScheduler {
 
-  private static final int syncIntervalSeconds = 20;
+  // how often the scheduler wakes up, looking at a project is cheap (no io)
+  private static final int tickMillis = 250;
 
-  private final FileSyncEngine fileSyncEngine;
+  private final SyncCoordinator syncCoordinator;
+  private final ProjectWatcher projectWatcher;
   private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-  private final ConcurrentHashMap<Integer, ScheduledFuture<?>> activeSessions = new ConcurrentHashMap<> ();
+  // (projectId, its schedule)
+  private final ConcurrentHashMap<Integer, ProjectSchedule> activeSessions = new ConcurrentHashMap<> ();
 
+  private ThreadPoolExecutor workers;
+  private ScheduledFuture<?> ticker;
+  private ScheduledFuture<?> metricsLogger;
+
+  // time between a push becoming due and a worker starting it
+  private final AtomicLong lastLagMillis = new AtomicLong();
+  private final AtomicLong maxLagMillis = new AtomicLong();
+  private final AtomicLong pushesCompleted = new AtomicLong();
+  private final AtomicLong pushesFailed = new AtomicLong();
+
+  // a burst of edits is pushed only after it settles down for this long...
+  @Value("${kodex.sync.debounce-millis:1000}")
+  private long debounceMillis;
+
+  // ...unless the oldest edit is already this old
+  @Value("${kodex.sync.max-delay-millis:10000}")
+  private long maxDelayMillis;
+
+  // full walk of the project, in case the watcher missed something
+  @Value("${kodex.sync.reconcile-interval-seconds:600}")
+  private long reconcileIntervalSeconds;
+
+  @Value("${kodex.sync.failure-backoff-seconds:20}")
+  private long failureBackoffSeconds;
+
+  // projects being edited are looked at this often...
+  @Value("${kodex.sync.min-check-interval-millis:500}")
+  private long minCheckIntervalMillis;
+
+  // ...and idle ones back off up to this
+  @Value("${kodex.sync.max-check-interval-millis:4000}")
+  private long maxCheckIntervalMillis;
+
+  @Value("${kodex.sync.worker-threads:4}")
+  private int workerThreads;
+
+  // 0 turns it off
+  @Value("${kodex.sync.metrics-log-seconds:60}")
+  private long metricsLogSeconds;
+
+  @PostConstruct
+  public void start() {
+    workers = new ThreadPoolExecutor(
+      workerThreads,
+      workerThreads,
+      0L,
+      TimeUnit.MILLISECONDS,
+      // never holds more than one entry per open project
+      new LinkedBlockingQueue<> ()
+    );
+
+    ticker = scheduler.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+    if(metricsLogSeconds > 0) {
+      metricsLogger = scheduler.scheduleAtFixedRate(
+        this::logMetrics, metricsLogSeconds, metricsLogSeconds, TimeUnit.SECONDS
+      );
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    ticker.cancel(false);
+    if(metricsLogger != null) metricsLogger.cancel(false);
+    scheduler.shutdownNow();
+    workers.shutdown();
+  }
 
   public void startScheduling(Integer projectId, String projectDriveId) {
-    if(activeSessions.containsKey(projectId)) {
+    ProjectSchedule schedule = new ProjectSchedule(projectId, projectDriveId);
+
+    // no need to walk everything right after a pull
+    schedule.lastFullPushAt = System.currentTimeMillis();
+    schedule.intervalMillis = minCheckIntervalMillis;
+    schedule.nextCheckAt = schedule.lastFullPushAt + minCheckIntervalMillis;
+
+    if(activeSessions.putIfAbsent(projectId, schedule) != null) {
       log.warn("Scheduling for project {} is in progress, skipping", projectId);
 
       return;
     }
 
-    ScheduledFuture<?> future = scheduler.scheduleAtFixedRate(
-      () -> runPush(projectId, projectDriveId),
-      syncIntervalSeconds, // initial delay, no need to push right after a pull
-      syncIntervalSeconds,
-      TimeUnit.SECONDS
-    );
-
-    activeSessions.put(projectId, future);
+    projectWatcher.watch(projectId);
     log.info("Scheduled sync for project {}", projectId);
   }
 
+  // once this returns no scheduled push of the project is running, or will run
   public void stopScheduling(Integer projectId) {
-    ScheduledFuture<?> future = activeSessions.remove(projectId);
+    ProjectSchedule schedule = activeSessions.remove(projectId);
+
+    projectWatcher.unwatch(projectId);
 
-    if(future != null) {
-      future.cancel(false); // don't interrupt if a push is currently running
-      log.info("Scheduled sync stopped for project {}", projectId);
-    } else {
+    if(schedule == null) {
       log.warn("No active schedule found for project {}", projectId);
+
+      return;
+    }
+
+    Future<?> inFlight;
+    synchronized(schedule) {
+      schedule.stopped = true;
+      inFlight = schedule.inFlight;
+    }
+
+    if(inFlight != null) {
+      // a queued push is dropped, a running one is waited for so it
+      // doesn't overlap with the push done while closing the project
+      if(workers.remove((Runnable) inFlight)) return;
+
+      try {
+        inFlight.get();
+      } catch(CancellationException | ExecutionException ex) {
+        // already logged by the push itself
+      } catch(InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    log.info("Scheduled sync stopped for project {}", projectId);
+  }
+
+  // a file the user saved, pushed on the next tick without waiting for the debounce
+  // saves in quick succession (or during a push) end up in a single push
+  public void pushSoon(Integer projectId, String relativePath) {
+    ProjectSchedule schedule = activeSessions.get(projectId);
+
+    if(schedule == null) return;
+
+    projectWatcher.markDirty(projectId, Set.of(relativePath));
+
+    synchronized(schedule) {
+      schedule.urgent = true;
+      schedule.nextCheckAt = System.currentTimeMillis();
+    }
+
+    tickNow();
+  }
+
+  public SyncSchedulerMetrics getMetrics() {
+    return new SyncSchedulerMetrics(
+      activeSessions.size(),
+      workers.getQueue().size(),
+      workers.getActiveCount(),
+      lastLagMillis.get(),
+      maxLagMillis.get(),
+      pushesCompleted.get(),
+      pushesFailed.get()
+    );
+  }
+
+  // lag growing or pushes piling up in the queue means worker-threads is too low
+  private void logMetrics() {
+    try {
+      SyncSchedulerMetrics metrics = getMetrics();
+
+      // quiet while nothing is open
+      if(metrics.scheduledProjects() == 0 && metrics.runningPushes() == 0) return;
+
+      log.info(
+        "Sync scheduler: {} projects, {} pushes queued, {} running, lag {} ms (max {} ms), {} pushes done, {} failed",
+        metrics.scheduledProjects(), metrics.queuedPushes(), metrics.runningPushes(),
+        metrics.lastLagMillis(), metrics.maxLagMillis(), metrics.pushesCompleted(), metrics.pushesFailed()
+      );
+    } catch(RuntimeException ex) {
+      // same as tick, an exception would stop the logging for good
+      log.error("Logging sync scheduler metrics failed", ex);
+    }
+  }
+
+  private void tick() {
+    try {
+      long now = System.currentTimeMillis();
+
+      // whoever has been waiting the longest goes first
+      List<ProjectSchedule> due = activeSessions.values().stream()
+        .filter(schedule -> schedule.nextCheckAt <= now)
+        .sorted(Comparator.comparingLong(schedule -> schedule.nextCheckAt))
+        .toList();
+
+      for(ProjectSchedule schedule : due) {
+        check(schedule, now);
+      }
+    } catch(RuntimeException ex) {
+      // an exception would silently stop the scheduled ticks
+      log.error("Sync scheduler tick failed", ex);
+    }
+  }
+
+  private void check(ProjectSchedule schedule, long now) {
+    synchronized(schedule) {
+      if(schedule.stopped || schedule.inFlight != null) return;
+
+      Integer projectId = schedule.projectId;
+
+      if(now < schedule.retryAfter) {
+        reschedule(schedule, now, schedule.retryAfter - now);
+        return;
+      }
+
+      boolean reconcile = projectWatcher.consumeOverflow(projectId)
+        || now - schedule.lastFullPushAt >= TimeUnit.SECONDS.toMillis(reconcileIntervalSeconds);
+
+      if(!reconcile && !schedule.urgent && !projectWatcher.isReady(projectId, debounceMillis, maxDelayMillis)) {
+        // nothing to do, look less often until the project is edited again
+        // a project with pending edits is looked at often so the debounce ends on time
+        schedule.intervalMillis = projectWatcher.hasChanges(projectId)
+          ? minCheckIntervalMillis
+          : Math.min(maxCheckIntervalMillis, schedule.intervalMillis * 2);
+
+        reschedule(schedule, now, schedule.intervalMillis);
+        return;
+      }
+
+      long dueAt = now;
+      schedule.urgent = false;
+      schedule.inFlight = workers.submit(() -> runPush(schedule, reconcile, dueAt));
+    }
+  }
+
+  private void runPush(ProjectSchedule schedule, boolean reconcile, long dueAt) {
+    long startedAt = System.currentTimeMillis();
+    long lagMillis = startedAt - dueAt;
+
+    lastLagMillis.set(lagMillis);
+    maxLagMillis.accumulateAndGet(lagMillis, Math::max);
+
+    Integer projectId = schedule.projectId;
+
+    try {
+      if(reconcile) {
+        // the full walk covers whatever is in the dirty set too
+        projectWatcher.drain(projectId);
+
+        try {
+          syncCoordinator.push(projectId, schedule.projectDriveId, null);
+          schedule.lastFullPushAt = startedAt;
+          pushesCompleted.incrementAndGet();
+        } catch(Exception ex) {
+          log.error("Scheduled full push failed for project {}: {}", projectId, ex.getMessage(), ex);
+          projectWatcher.markOverflow(projectId);
+          backOff(schedule);
+        }
+
+        return;
+      }
+
+      Set<String> changedPaths = projectWatcher.drain(projectId);
+
+      try {
+        syncCoordinator.push(projectId, schedule.projectDriveId, changedPaths);
+        pushesCompleted.incrementAndGet();
+      } catch(Exception ex) {
+        log.error("Scheduled push failed for project {}: {}", projectId, ex.getMessage(), ex);
+        // paths pushed successfully are cheap to check again, so just put everything back
+        projectWatcher.markDirty(projectId, changedPaths);
+        backOff(schedule);
+      }
+    } finally {
+      boolean urgent;
+
+      synchronized(schedule) {
+        schedule.inFlight = null;
+        // it's being edited, keep looking at it often
+        schedule.intervalMillis = minCheckIntervalMillis;
+        urgent = schedule.urgent;
+
+        if(urgent) {
+          // saved while this push ran
+          schedule.nextCheckAt = System.currentTimeMillis();
+        } else {
+          reschedule(schedule, System.currentTimeMillis(), minCheckIntervalMillis);
+        }
+      }
+
+      if(urgent) tickNow();
     }
   }
 
-  private void runPush(Integer projectId, String projectDriveId) {
+  private void tickNow() {
     try {
-      fileSyncEngine.push(projectId, projectDriveId);
-    } catch(Exception ex) {
-      log.error("Scheduled push failed for project {}: {}", projectId, ex.getMessage(), ex);
+      scheduler.execute(this::tick);
+    } catch(RejectedExecutionException ex) {
+      // shutting down
+    }
+  }
+
+  private void backOff(ProjectSchedule schedule) {
+    pushesFailed.incrementAndGet();
+    schedule.retryAfter = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(failureBackoffSeconds);
+  }
+
+  // up to a quarter of jitter, so projects opened together don't stay in lockstep
+  private void reschedule(ProjectSchedule schedule, long now, long delayMillis) {
+    long jitter = ThreadLocalRandom.current().nextLong(delayMillis / 4 + 1);
+
+    schedule.nextCheckAt = now + delayMillis + jitter;
+  }
+
+  public record SyncSchedulerMetrics(
+    int scheduledProjects,
+    int queuedPushes,
+    int runningPushes,
+    long lastLagMillis,
+    long maxLagMillis,
+    long pushesCompleted,
+    long pushesFailed
+  ) {
+  }
+
+  private static class ProjectSchedule {
+
+    private final Integer projectId;
+    private final String projectDriveId;
+    private volatile long nextCheckAt;
+    private long intervalMillis;
+    // last time the whole project was walked and pushed
+    private volatile long lastFullPushAt;
+    // no push is attempted before this time after a failure
+    private volatile long retryAfter;
+    // a saved file is waiting, the next check pushes without waiting for the debounce
+    private boolean urgent;
+    // queued or running push, there's at most one
+    private Future<?> inFlight;
+    private boolean stopped;
+
+    private ProjectSchedule(Integer projectId, String projectDriveId) {
+      this.projectId = projectId;
+      this.projectDriveId = projectDriveId;
     }
+
   }
 
-}
\ No newline at end of file
+}
@@ -1,50 +1,216 @@
 package com.something.kodex_backend.project;
 
+import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 
 @Service
+@RequiredArgsConstructor
 public class SyncState {
 
-  // (projectId, (relativePath, DriveFile))
-  private final ConcurrentHashMap<Integer , ConcurrentHashMap<String, DriveFile>> state = new ConcurrentHashMap<> ();
+  private final SyncJournal syncJournal;
+
+  // (projectId, state of that project)
+  private final ConcurrentHashMap<Integer, ProjectState> state = new ConcurrentHashMap<> ();
 
   public Optional<DriveFile> get(Integer projectId, String relativePath) {
-    ConcurrentHashMap<String, DriveFile> projectState = state.get(projectId);
+    ProjectState projectState = state.get(projectId);
 
     if(projectState == null) {
       return Optional.empty();
     }
 
-    return Optional.ofNullable(projectState.get(relativePath));
+    return Optional.ofNullable(projectState.files.get(relativePath));
   }
 
+  // map and journal are always updated together under the project lock,
+  // so the journal order matches the order of the in memory updates
   public void put(Integer projectId, DriveFile driveFile) {
-    state.computeIfAbsent(projectId, k -> new ConcurrentHashMap<> ())
-      .put(driveFile.relativePath(), driveFile);
+    ProjectState projectState = projectState(projectId);
+
+    synchronized(projectState) {
+      projectState.files.put(driveFile.relativePath(), driveFile);
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendPut(projectId, driveFile));
+    }
   }
 
   public void remove(Integer projectId, String relativePath) {
-    ConcurrentHashMap<String, DriveFile> projectState = state.get(projectId);
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return;
 
-    if(projectState != null) projectState.remove(relativePath);
+    synchronized(projectState) {
+      if(projectState.files.remove(relativePath) == null) return;
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendRemove(projectId, relativePath));
+    }
   }
 
   public ConcurrentHashMap<String, DriveFile> getProjectSnapshot(Integer projectId) {
-    ConcurrentHashMap<String, DriveFile> projectState = state.get(projectId);
+    ProjectState projectState = state.get(projectId);
 
     if(projectState == null) return new ConcurrentHashMap<> ();
 
     // send a copy to avoid concurrent modification
-    return new ConcurrentHashMap<> (projectState);
+    return new ConcurrentHashMap<> (projectState.files);
+  }
+
+  // (relativePath, googleDriveId) of the folders of a project
+  public Optional<String> getFolderId(Integer projectId, String relativePath) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return Optional.empty();
+
+    return Optional.ofNullable(projectState.folders.get(relativePath));
+  }
+
+  public void putFolder(Integer projectId, String relativePath, String folderId) {
+    ProjectState projectState = projectState(projectId);
+
+    synchronized(projectState) {
+      if(folderId.equals(projectState.folders.put(relativePath, folderId))) return;
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendFolderPut(projectId, relativePath, folderId));
+    }
+  }
+
+  public void removeFolder(Integer projectId, String relativePath) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return;
+
+    synchronized(projectState) {
+      if(projectState.folders.remove(relativePath) == null) return;
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendFolderRemove(projectId, relativePath));
+    }
+  }
+
+  public ConcurrentHashMap<String, String> getFolderSnapshot(Integer projectId) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return new ConcurrentHashMap<> ();
+
+    return new ConcurrentHashMap<> (projectState.folders);
+  }
+
+  // resumable upload of a file which didn't finish, kept so the next push can continue it
+  public Optional<UploadSession> getUploadSession(Integer projectId, String relativePath) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return Optional.empty();
+
+    return Optional.ofNullable(projectState.uploadSessions.get(relativePath));
+  }
+
+  public void putUploadSession(Integer projectId, UploadSession uploadSession) {
+    ProjectState projectState = projectState(projectId);
+
+    synchronized(projectState) {
+      projectState.uploadSessions.put(uploadSession.relativePath(), uploadSession);
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendUploadPut(projectId, uploadSession));
+    }
+  }
+
+  public void removeUploadSession(Integer projectId, String relativePath) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return;
+
+    synchronized(projectState) {
+      if(projectState.uploadSessions.remove(relativePath) == null) return;
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendUploadRemove(projectId, relativePath));
+    }
+  }
+
+  // drive changes page token, changes after this token haven't been pulled yet
+  public Optional<String> getPageToken(Integer projectId) {
+    ProjectState projectState = state.get(projectId);
+
+    if(projectState == null) return Optional.empty();
+
+    return Optional.ofNullable(projectState.pageToken);
+  }
+
+  public void putPageToken(Integer projectId, String pageToken) {
+    ProjectState projectState = projectState(projectId);
+
+    synchronized(projectState) {
+      projectState.pageToken = pageToken;
+
+      compactIfNeeded(projectId, projectState, syncJournal.appendPageToken(projectId, pageToken));
+    }
+  }
+
+  // load the persisted state of a project, if there's any, into memory
+  // returns true if something was restored
+  public boolean restoreProject(Integer projectId) {
+    if(state.containsKey(projectId)) return true;
+
+    SyncJournal.PersistedState persisted = syncJournal.load(projectId);
+
+    if(persisted.isEmpty()) return false;
+
+    ProjectState projectState = new ProjectState();
+    projectState.files.putAll(persisted.getFiles());
+    projectState.folders.putAll(persisted.getFolders());
+    projectState.uploadSessions.putAll(persisted.getUploadSessions());
+    projectState.pageToken = persisted.getPageToken();
+
+    // fold the replayed journal into a snapshot right away, so the next
+    // restart doesn't have to replay the same records again
+    synchronized(projectState) {
+      if(state.putIfAbsent(projectId, projectState) == null) {
+        compactIfNeeded(projectId, projectState, true);
+      }
+    }
+
+    return true;
+  }
+
+  // drop the in memory state but keep it on disk for the next open
+  public void unloadProject(Integer projectId) {
+    state.remove(projectId);
+    syncJournal.close(projectId);
   }
 
   public void clearProject(Integer projectId) {
     state.remove(projectId);
+    syncJournal.delete(projectId);
+  }
+
+  private ProjectState projectState(Integer projectId) {
+    return state.computeIfAbsent(projectId, k -> new ProjectState());
+  }
+
+  // must be called holding the project lock
+  private void compactIfNeeded(Integer projectId, ProjectState projectState, boolean needed) {
+    if(!needed) return;
+
+    syncJournal.compact(
+      projectId,
+      projectState.files,
+      projectState.folders,
+      projectState.uploadSessions,
+      projectState.pageToken
+    );
+  }
+
+  private static class ProjectState {
+
+    // (relativePath, DriveFile)
+    private final ConcurrentHashMap<String, DriveFile> files = new ConcurrentHashMap<> ();
+    // (relativePath, googleDriveId) of folders
+    private final ConcurrentHashMap<String, String> folders = new ConcurrentHashMap<> ();
+    // (relativePath, unfinished resumable upload)
+    private final ConcurrentHashMap<String, UploadSession> uploadSessions = new ConcurrentHashMap<> ();
+    private volatile String pageToken;
+
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+package com.something.kodex_backend.project;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+// line based three way merge (like diff3) of two versions of a text file against
+// the version both started from
+// lines kept by both sides anchor the merge, between two anchors whichever side
+// changed something wins, if both changed the same lines differently it's a conflict
+public final class ThreeWayMerge {
+
+  // two versions further apart than this aren't worth merging, the diff gets slow
+  private static final int MAX_EDITS = 4000;
+
+  private ThreeWayMerge() {
+  }
+
+  // the merged text, or empty if both sides changed the same lines
+  public static Optional<String> merge(String base, String local, String remote) {
+    List<String> baseLines = lines(base);
+    List<String> localLines = lines(local);
+    List<String> remoteLines = lines(remote);
+
+    int[] toLocal = match(baseLines, localLines);
+    int[] toRemote = match(baseLines, remoteLines);
+
+    if(toLocal == null || toRemote == null) return Optional.empty();
+
+    StringBuilder merged = new StringBuilder();
+    int b = 0;
+    int l = 0;
+    int r = 0;
+
+    while(true) {
+      // next base line both sides kept
+      int anchor = b;
+      while(anchor < baseLines.size() && (toLocal[anchor] == -1 || toRemote[anchor] == -1)) anchor++;
+
+      int localEnd = anchor < baseLines.size() ? toLocal[anchor] : localLines.size();
+      int remoteEnd = anchor < baseLines.size() ? toRemote[anchor] : remoteLines.size();
+
+      List<String> baseChunk = baseLines.subList(b, anchor);
+      List<String> localChunk = localLines.subList(l, localEnd);
+      List<String> remoteChunk = remoteLines.subList(r, remoteEnd);
+
+      if(localChunk.equals(baseChunk)) {
+        remoteChunk.forEach(merged::append);
+      } else if(remoteChunk.equals(baseChunk) || remoteChunk.equals(localChunk)) {
+        localChunk.forEach(merged::append);
+      } else {
+        return Optional.empty();
+      }
+
+      if(anchor == baseLines.size()) return Optional.of(merged.toString());
+
+      merged.append(baseLines.get(anchor));
+      b = anchor + 1;
+      l = localEnd + 1;
+      r = remoteEnd + 1;
+    }
+  }
+
+  // lines with their line endings, so the merge keeps them as they were
+  private static List<String> lines(String text) {
+    List<String> lines = new ArrayList<> ();
+    int start = 0;
+
+    for(int i = 0; i < text.length(); i++) {
+      if(text.charAt(i) == '\n') {
+        lines.add(text.substring(start, i + 1));
+        start = i + 1;
+      }
+    }
+
+    if(start < text.length()) lines.add(text.substring(start));
+
+    return lines;
+  }
+
+  // for every line of a its index in b if it's common to both, -1 otherwise
+  // myers' diff, null if a and b are more than MAX_EDITS apart
+  private static int[] match(List<String> a, List<String> b) {
+    int n = a.size();
+    int m = b.size();
+    int max = Math.min(n + m, MAX_EDITS);
+    int offset = max + 1;
+
+    int[] v = new int[2 * max + 3];
+    // v of every round, only the part it used (k from -d to d)
+    List<int[]> trace = new ArrayList<> ();
+
+    for(int d = 0; d <= max; d++) {
+      for(int k = -d; k <= d; k += 2) {
+        int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+          ? v[offset + k + 1]
+          : v[offset + k - 1] + 1;
+        int y = x - k;
+
+        while(x < n && y < m && a.get(x).equals(b.get(y))) {
+          x++;
+          y++;
+        }
+
+        v[offset + k] = x;
+
+        if(x >= n && y >= m) {
+          trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+
+          return backtrack(trace, n, m);
+        }
+      }
+
+      trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+    }
+
+    return null;
+  }
+
+  private static int[] backtrack(List<int[]> trace, int n, int m) {
+    int[] matches = new int[n];
+    Arrays.fill(matches, -1);
+
+    int x = n;
+    int y = m;
+
+    for(int d = trace.size() - 1; d > 0; d--) {
+      int[] previous = trace.get(d - 1);
+      int k = x - y;
+      // previous holds k from -(d - 1) to d - 1
+      int prevK = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]) ? k + 1 : k - 1;
+      int prevX = previous[prevK + d - 1];
+      int prevY = prevX - prevK;
+
+      // the diagonal after the edit is all matching lines
+      while(x > prevX && y > prevY) {
+        x--;
+        y--;
+        matches[x] = y;
+      }
+
+      x = prevX;
+      y = prevY;
+    }
+
+    while(x > 0 && y > 0) {
+      x--;
+      y--;
+      matches[x] = y;
+    }
+
+    return matches;
+  }
+
+}
\ No newline at end of file
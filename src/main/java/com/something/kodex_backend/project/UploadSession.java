@@ -0,0 +1,12 @@
+package com.something.kodex_backend.project;
+
+// a resumable upload started on drive but not finished yet
+// size and modifiedAt are of the local file when the session started,
+// the session is only resumed if the file is still the same
+public record UploadSession(
+  String relativePath,
+  String sessionUri,
+  long size,
+  long modifiedAt
+) {
+}
\ No newline at end of file
@@ -6,6 +6,7 @@ import lombok.NoArgsConstructor;
 import lombok.Setter;
 
 import java.nio.file.Path;
+import java.util.List;
 
 @Getter
 @Setter
@@ -17,5 +18,11 @@ public class UploadTask {
   private String relativePath;
   private String existingFileId;
   private String parentDriveId;
+  // content defined chunks of big files, saved as the file's manifest once it's uploaded
+  private List<ChunkManifests.Chunk> chunks;
+  // bytes which aren't in the manifest of the last pushed version
+  private long changedBytes;
+  // stat of the file when it was hashed, remembered once it's uploaded
+  private FileFingerprints.FileFingerprint fingerprint;
 
 }
\ No newline at end of file
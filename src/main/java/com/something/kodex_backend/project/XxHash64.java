@@ -0,0 +1,155 @@
+package com.something.kodex_backend.project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// xxh64 of a whole file, read through a memory map
+// many times faster than md5, so it's used to tell if a file changed since it was
+// last synced, md5 is only computed when it has to be compared with drive
+public final class XxHash64 {
+
+  private static final long PRIME1 = 0x9E3779B185EBCA87L;
+  private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long PRIME3 = 0x165667B19E3779F9L;
+  private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+  private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+  // files are mapped this much at a time, a multiple of the 32 byte stripe
+  private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+
+  private XxHash64() {
+  }
+
+  public static long hash(Path file) throws IOException {
+    try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long length = channel.size();
+      Hasher hasher = new Hasher();
+
+      MappedByteBuffer buffer = null;
+
+      for(long offset = 0; offset < length; offset += WINDOW_BYTES) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_BYTES, length - offset));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        hasher.stripes(buffer);
+      }
+
+      // less than a stripe is left at the end of the last window
+      return hasher.finish(length, buffer);
+    } catch(InternalError ex) {
+      // the file was truncated while mapped
+      throw new IOException("File changed while hashing " + file, ex);
+    }
+  }
+
+  // the same hash over bytes coming in pieces, for a file read anyway for something else
+  // a hasher is used once, digest ends it
+  public static final class Hasher {
+
+    private long v1 = PRIME1 + PRIME2;
+    private long v2 = PRIME2;
+    private long v3 = 0;
+    private long v4 = -PRIME1;
+    private long length;
+
+    // bytes of a stripe not complete yet
+    private final ByteBuffer pending = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+
+    public void update(byte[] bytes, int offset, int count) {
+      ByteBuffer input = ByteBuffer.wrap(bytes, offset, count).order(ByteOrder.LITTLE_ENDIAN);
+      length += count;
+
+      if(pending.position() > 0) {
+        int n = Math.min(pending.remaining(), count);
+        pending.put(bytes, offset, n);
+        input.position(input.position() + n);
+
+        if(pending.hasRemaining()) return;
+
+        pending.flip();
+        stripes(pending);
+        pending.clear();
+      }
+
+      stripes(input);
+      pending.put(input);
+    }
+
+    public long digest() {
+      pending.flip();
+
+      return finish(length, pending);
+    }
+
+    private void stripes(ByteBuffer buffer) {
+      while(buffer.remaining() >= 32) {
+        v1 = round(v1, buffer.getLong());
+        v2 = round(v2, buffer.getLong());
+        v3 = round(v3, buffer.getLong());
+        v4 = round(v4, buffer.getLong());
+      }
+    }
+
+    // tail holds the last length % 32 bytes, null if there were none at all
+    private long finish(long length, ByteBuffer tail) {
+      long hash;
+
+      if(length >= 32) {
+        hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+        hash = mergeRound(hash, v1);
+        hash = mergeRound(hash, v2);
+        hash = mergeRound(hash, v3);
+        hash = mergeRound(hash, v4);
+      } else {
+        hash = PRIME5;
+      }
+
+      hash += length;
+
+      if(tail != null) {
+        while(tail.remaining() >= 8) {
+          hash ^= round(0, tail.getLong());
+          hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+
+        if(tail.remaining() >= 4) {
+          hash ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+          hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+        }
+
+        while(tail.hasRemaining()) {
+          hash ^= (tail.get() & 0xFFL) * PRIME5;
+          hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+      }
+
+      hash ^= hash >>> 33;
+      hash *= PRIME2;
+      hash ^= hash >>> 29;
+      hash *= PRIME3;
+      hash ^= hash >>> 32;
+
+      return hash;
+    }
+
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * PRIME2;
+    acc = Long.rotateLeft(acc, 31);
+
+    return acc * PRIME1;
+  }
+
+  private static long mergeRound(long acc, long value) {
+    acc ^= round(0, value);
+
+    return acc * PRIME1 + PRIME4;
+  }
+
+}
\ No newline at end of file
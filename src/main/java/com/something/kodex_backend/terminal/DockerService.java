@@ -12,7 +12,11 @@ import org.springframework.stereotype.Service;
 
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 @Service
@@ -24,17 +28,158 @@ public class DockerService {
 
   // userId to ContainerId
   private final Map<String, String> userContainerMap = new ConcurrentHashMap<> ();
+  // containerId to the project whose folder is bind mounted into it
+  private final Map<String, Integer> containerProjects = new ConcurrentHashMap<> ();
+  // containers prewarm made which no terminal has used yet
+  private final Set<String> unusedContainers = ConcurrentHashMap.newKeySet();
+  // userId to container being created and started ahead of the first terminal
+  private final Map<String, CompletableFuture<String>> warmingContainers = new ConcurrentHashMap<> ();
+  // userId to the lock held while its container is created or removed
+  // not a monitor, prewarm holds it on a virtual thread while talking to docker
+  private final Map<String, ReentrantLock> userLocks = new ConcurrentHashMap<> ();
 
+  // creates and starts the container of a user in the background as soon as a project
+  // is opened, so the first terminal only has to exec into it
+  // containers can't be made ahead of that in a pool, the project folder is
+  // bind mounted when the container is created and can't be swapped in later
+  // returns false if the user has (or is getting) a container already, one prewarmed
+  // for another project which never got a terminal is replaced though
+  public boolean prewarm(String userId, Path localProjectDir, Integer projectId) {
+    CompletableFuture<String> warming = new CompletableFuture<> ();
+    ReentrantLock lock = userLock(userId);
+
+    lock.lock();
+
+    try {
+      String existing = userContainerMap.get(userId);
+
+      if(existing != null) {
+        if(projectId.equals(containerProjects.get(existing)) || !unusedContainers.contains(existing)) return false;
+
+        try {
+          removeContainer(userId, existing);
+        } catch(RuntimeException ex) {
+          // the first terminal gets to create it then
+          log.warn("failed to remove unused container {} of user {}", existing, userId, ex);
+
+          return false;
+        }
+      }
+
+      if(warmingContainers.putIfAbsent(userId, warming) != null) return false;
+    } finally {
+      lock.unlock();
+    }
+
+    Thread.ofVirtual().name("container-prewarm-" + userId).start(() -> {
+      try {
+        long start = System.nanoTime();
+        String containerId;
+
+        lock.lock();
+
+        try {
+          String existing = userContainerMap.get(userId);
+          containerId = createForUser(userId, localProjectDir, projectId);
+
+          if(!containerId.equals(existing)) unusedContainers.add(containerId);
+        } finally {
+          lock.unlock();
+        }
+
+        startContainer(containerId);
+
+        log.info(
+          "container {} for user {} ready in {} ms",
+          containerId, userId, (System.nanoTime() - start) / 1_000_000
+        );
+        warming.complete(containerId);
+      } catch(RuntimeException ex) {
+        warming.completeExceptionally(ex);
+      } finally {
+        warmingContainers.remove(userId, warming);
+      }
+    });
+
+    return true;
+  }
+
+  // removes the container prewarm made for a project if no terminal ever used it,
+  // when the project failed to open or was closed, it'd otherwise stay up with the
+  // folder of a project which isn't open (or is deleted) mounted
+  public void discardPrewarmed(String userId, Integer projectId) {
+    CompletableFuture<String> warming = warmingContainers.get(userId);
+
+    if(warming != null) {
+      try {
+        warming.join();
+      } catch(CompletionException ex) {
+        // nothing was started, but it may have been created
+      }
+    }
+
+    ReentrantLock lock = userLock(userId);
+
+    lock.lock();
+
+    try {
+      String containerId = userContainerMap.get(userId);
+
+      if(containerId == null || !unusedContainers.contains(containerId)) return;
+      if(!projectId.equals(containerProjects.get(containerId))) return;
+
+      log.info("removing unused container {} prewarmed for project {} of user {}", containerId, projectId, userId);
+      removeContainer(userId, containerId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // the container of the user with the folder of this project mounted, one with
+  // another project's folder is replaced
   public String getOrCreateForUser(String userId, Path localProjectDir, Integer projectId) {
+    // being warmed up already, wait for that one instead of racing it
+    CompletableFuture<String> warming = warmingContainers.get(userId);
+
+    if(warming != null) {
+      try {
+        warming.join();
+      } catch(CompletionException ex) {
+        log.warn("prewarming container for user {} failed, creating it now", userId, ex.getCause());
+      }
+    }
+
+    ReentrantLock lock = userLock(userId);
+
+    lock.lock();
+
+    try {
+      String containerId = createForUser(userId, localProjectDir, projectId);
+      unusedContainers.remove(containerId);
+
+      return containerId;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // must be called holding the user's lock
+  private String createForUser(String userId, Path localProjectDir, Integer projectId) {
     String containerName = "term_" + userId;
     String containerId = userContainerMap.get(userId);
 
     // if there exists a container for the
     // user give it back
-    if(containerId != null){
+    if(containerId != null && projectId.equals(containerProjects.get(containerId))) {
       return containerId;
     }
 
+    // it has another project mounted, its name is needed for the new one too
+    if(containerId != null) {
+      log.info("container {} of user {} has another project mounted, replacing it", containerId, userId);
+      removeContainer(userId, containerId);
+    }
+
     HostConfig config = HostConfig
       .newHostConfig()
       .withReadonlyRootfs(true)
@@ -84,6 +229,7 @@ public class DockerService {
       .exec();
 
     userContainerMap.put(userId, container.getId());
+    containerProjects.put(container.getId(), projectId);
 
     return container.getId();
   }
@@ -119,17 +265,49 @@ public class DockerService {
 //    projectMountService.
 
 
+    ReentrantLock lock = userLock(userId);
+
+    lock.lock();
+
     try {
-      dockerClient.stopContainerCmd(containerId)
-        .exec();
+      try {
+        dockerClient.stopContainerCmd(containerId)
+          .exec();
+
+        dockerClient.removeContainerCmd(containerId)
+          .withForce(true)
+          .exec();
+      } catch(Exception ex) {
+        throw new RuntimeException(ex);
+      }
+
+      forget(userId, containerId);
+    } finally {
+      lock.unlock();
+    }
+  }
 
+  // forced, so one which was created but never started goes too
+  // it's forgotten even if that fails, a container with the wrong project mounted
+  // must never be handed out again, creating the next one fails on its name instead
+  // must be called holding the user's lock
+  private void removeContainer(String userId, String containerId) {
+    try {
       dockerClient.removeContainerCmd(containerId)
         .withForce(true)
         .exec();
-    } catch(Exception ex) {
-      throw new RuntimeException(ex);
+    } finally {
+      forget(userId, containerId);
     }
+  }
+
+  private void forget(String userId, String containerId) {
+    userContainerMap.remove(userId, containerId);
+    containerProjects.remove(containerId);
+    unusedContainers.remove(containerId);
+  }
 
-    userContainerMap.remove(userId);
+  private ReentrantLock userLock(String userId) {
+    return userLocks.computeIfAbsent(userId, k -> new ReentrantLock());
   }
 }
\ No newline at end of file
@@ -0,0 +1,172 @@
+package com.something.kodex_backend.terminal;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// stdin of one terminal, a ring buffer between the websocket handler and docker-java
+// the handler never waits: what it submits is queued and a virtual thread of the terminal
+// (the feeder) copies it into the ring, parking while the ring is full, so a big paste goes
+// in as the container reads it, only past queueBytes of backlog is input refused
+// the reader (docker-java's stdin thread) parks while the ring is empty
+// one writer (the feeder) and one reader, no locks: each side only moves its own position,
+// and the writer's position is published after the bytes it covers are copied in
+public class TerminalInputChannel extends InputStream {
+
+  private final byte[] buffer;
+  private final int mask;
+  private final long queueBytes;
+
+  // total bytes ever read and written, the ring index is the low bits
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+
+  // submitted input not in the ring yet, any number of handlers may submit
+  private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<> ();
+  private final AtomicLong queuedBytes = new AtomicLong();
+
+  private final Thread feeder;
+  private volatile Thread reader;
+  private volatile boolean closed;
+
+  // capacity is rounded up to a power of two
+  public TerminalInputChannel(String terminalId, int capacity, long queueBytes) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+    this.buffer = new byte[size];
+    this.mask = size - 1;
+    this.queueBytes = queueBytes;
+    this.feeder = Thread.ofVirtual().name("terminal-input-" + terminalId).unstarted(this::feed);
+  }
+
+  public void start() {
+    feeder.start();
+  }
+
+  // false if closed, or the container is so far behind that queueBytes are waiting already
+  public boolean submit(byte[] data) {
+    if(closed) return false;
+
+    long queued = queuedBytes.addAndGet(data.length);
+
+    // a single paste bigger than the limit still goes in when nothing else waits
+    if(queued > queueBytes && queued != data.length) {
+      queuedBytes.addAndGet(-data.length);
+
+      return false;
+    }
+
+    queue.add(data);
+    LockSupport.unpark(feeder);
+
+    return true;
+  }
+
+  @Override
+  public int read() throws InterruptedIOException {
+    byte[] one = new byte[1];
+
+    return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+  }
+
+  // blocks until there's input, -1 once closed and drained
+  @Override
+  public int read(byte[] b, int off, int len) throws InterruptedIOException {
+    if(len == 0) return 0;
+
+    // set before looking at tail, so a writer publishing right after sees it and unparks
+    reader = Thread.currentThread();
+
+    long h = head.get();
+    long t;
+
+    while((t = tail.get()) == h) {
+      if(closed) return -1;
+
+      LockSupport.park(this);
+
+      if(Thread.interrupted()) throw new InterruptedIOException("Interrupted while waiting for terminal input");
+    }
+
+    int n = (int) Math.min(len, t - h);
+    int index = (int) (h & mask);
+    int first = Math.min(n, buffer.length - index);
+
+    System.arraycopy(buffer, index, b, off, first);
+    System.arraycopy(buffer, 0, b, off + first, n - first);
+
+    head.set(h + n);
+
+    // the feeder may be waiting for room
+    LockSupport.unpark(feeder);
+
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return (int) (tail.get() - head.get());
+  }
+
+  // the shell gets end of input, the feeder stops and what's still queued is dropped
+  @Override
+  public void close() {
+    closed = true;
+
+    Thread waiting = reader;
+    if(waiting != null) LockSupport.unpark(waiting);
+
+    LockSupport.unpark(feeder);
+  }
+
+  private void feed() {
+    while(!closed) {
+      byte[] data = queue.poll();
+
+      if(data == null) {
+        // submit unparks after queueing, so nothing added after the poll is missed
+        LockSupport.park(this);
+
+        continue;
+      }
+
+      write(data);
+      queuedBytes.addAndGet(-data.length);
+    }
+
+    queue.clear();
+  }
+
+  // copies all of data into the ring, as room frees up, unless closed first
+  private void write(byte[] data) {
+    int written = 0;
+
+    while(written < data.length && !closed) {
+      long t = tail.get();
+      int free = (int) (buffer.length - (t - head.get()));
+
+      if(free == 0) {
+        // read unparks after moving head, so room made after the check is never missed
+        LockSupport.park(this);
+
+        continue;
+      }
+
+      int n = Math.min(free, data.length - written);
+      int index = (int) (t & mask);
+      int first = Math.min(n, buffer.length - index);
+
+      System.arraycopy(data, written, buffer, index, first);
+      System.arraycopy(data, written + first, buffer, 0, n - first);
+
+      tail.set(t + n);
+      written += n;
+
+      Thread waiting = reader;
+      if(waiting != null) LockSupport.unpark(waiting);
+    }
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,304 @@
+package com.something.kodex_backend.terminal;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// carries the output of one terminal from the docker callback thread to its websocket
+// output goes into a ring buffer and a sender thread sends it batched, a batch goes out when
+// it's full or when its oldest byte waited long enough, so a chatty command doesn't turn into
+// thousands of tiny messages while typing still echoes right away
+// what's unsent is bounded, when the client can't keep up the callback thread waits on it,
+// which stops reading the exec stream so docker holds back the rest of the output
+// the ring (kept off heap, its size is fixed) is also the scrollback of the terminal: every
+// byte has an offset, the number of bytes printed before it, and a client attaching again
+// says up to which offset it got, it's sent the rest as long as that's still in the ring
+// while no client is attached output isn't held back, it overwrites the oldest bytes
+@Slf4j
+public class TerminalOutputPump {
+
+  private final String terminalId;
+  private final ByteBuffer ring;
+  private final int batchBytes;
+  private final long lingerNanos;
+  private final long queueBytes;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  // everything below is guarded by lock
+  private WebSocketSession ws;
+  // offset right after the last byte printed
+  private long end;
+  // offset of the next byte to send to ws
+  private long sentOffset;
+  // ws wasn't told yet which offset its output starts at
+  private boolean announce;
+  // text messages for the attached client, sent ahead of the next output
+  private final List<String> notices = new ArrayList<> ();
+  // when the oldest unsent byte came in
+  private long oldestQueuedAt;
+  private boolean closed;
+  private long framesIn;
+
+  // only touched by the sender thread
+  private long messagesOut;
+  private long bytesOut;
+  private long totalLatencyNanos;
+  private long maxLatencyNanos;
+
+  public TerminalOutputPump(
+    String terminalId,
+    int scrollbackBytes,
+    int batchBytes,
+    long lingerMillis,
+    long queueBytes
+  ) {
+    this.terminalId = terminalId;
+    this.ring = ByteBuffer.allocateDirect(scrollbackBytes);
+    this.batchBytes = batchBytes;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    // unsent bytes must never be overwritten while a client is attached
+    this.queueBytes = Math.min(queueBytes, scrollbackBytes);
+  }
+
+  public void start() {
+    Thread.ofVirtual().name("terminal-output-" + terminalId).start(this::run);
+  }
+
+  // sends everything after offset (or the oldest kept byte) to ws, then what comes next
+  // replaces the client attached so far, if any
+  public void attach(WebSocketSession ws, long offset) {
+    lock.lock();
+
+    try {
+      long start = Math.max(0L, end - ring.capacity());
+
+      if(offset < start) {
+        log.info("Terminal {} lost {} bytes of output while detached", terminalId, start - offset);
+      }
+
+      this.ws = ws;
+      sentOffset = Math.min(Math.max(offset, start), end);
+      oldestQueuedAt = System.nanoTime();
+      announce = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // output keeps going into the ring, nothing is sent until a client attaches again
+  public void detach(WebSocketSession ws) {
+    lock.lock();
+
+    try {
+      if(this.ws != ws) return;
+
+      this.ws = null;
+      notices.clear();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isClosed() {
+    lock.lock();
+
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // blocks while an attached client is too far behind, output after close is dropped
+  public void offer(byte[] payload) throws InterruptedException {
+    lock.lockInterruptibly();
+
+    try {
+      while(!closed && ws != null && !hasRoom(payload.length)) notFull.await();
+
+      if(closed) return;
+
+      if(end == sentOffset) oldestQueuedAt = System.nanoTime();
+
+      // more than the whole ring, only its tail is kept
+      int skip = Math.max(0, payload.length - ring.capacity());
+      write(end + skip, payload, skip, payload.length - skip);
+
+      end += payload.length;
+      framesIn++;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // a text message for the client attached now, dropped if there's none
+  // goes through the sender thread, a websocket can't be sent to from two threads at once
+  public void notice(String message) {
+    lock.lock();
+
+    try {
+      if(closed || ws == null) return;
+
+      notices.add(message);
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // what's unsent is still sent to an attached client, then the sender stops
+  public void close() {
+    lock.lock();
+
+    try {
+      closed = true;
+      notEmpty.signalAll();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run() {
+    long startedAt = System.nanoTime();
+
+    try {
+      while(true) {
+        WebSocketSession target;
+        List<String> messages;
+        byte[] batch;
+        long batchOffset;
+        long queuedAt;
+        boolean announcing;
+
+        lock.lockInterruptibly();
+
+        try {
+          while(!closed && !hasWork()) notEmpty.await();
+
+          if(!hasWork()) return;
+
+          // more output is usually right behind, give it a moment to join the batch
+          long deadline = oldestQueuedAt + lingerNanos;
+          while(!closed && ws != null && end - sentOffset < batchBytes) {
+            long left = deadline - System.nanoTime();
+
+            if(left <= 0) break;
+
+            notEmpty.awaitNanos(left);
+          }
+
+          // detached while lingering
+          if(ws == null) continue;
+
+          target = ws;
+          announcing = announce;
+          announce = false;
+          messages = List.copyOf(notices);
+          notices.clear();
+          queuedAt = oldestQueuedAt;
+          batchOffset = sentOffset;
+          batch = new byte[(int) Math.min(batchBytes, end - sentOffset)];
+
+          read(sentOffset, batch);
+          sentOffset += batch.length;
+          // bytes left behind keep their time, so they don't wait for another linger
+          notFull.signalAll();
+        } finally {
+          lock.unlock();
+        }
+
+        try {
+          if(announcing) {
+            target.sendMessage(new TextMessage(
+              "{\"type\":\"attached\",\"terminal_id\":\"" + terminalId + "\",\"offset\":" + batchOffset + "}"
+            ));
+          }
+
+          for(String message : messages) target.sendMessage(new TextMessage(message));
+
+          if(batch.length > 0) target.sendMessage(new BinaryMessage(batch));
+        } catch(IOException | IllegalStateException ex) {
+          // the client is gone, it'll say where it stopped when it attaches again
+          log.debug("Terminal {} can't send output to its client anymore", terminalId, ex);
+          detach(target);
+
+          continue;
+        }
+
+        if(batch.length == 0) continue;
+
+        long latency = System.nanoTime() - queuedAt;
+        messagesOut++;
+        bytesOut += batch.length;
+        totalLatencyNanos += latency;
+        maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+      }
+    } catch(InterruptedException ex) {
+      close();
+    } finally {
+      double seconds = Math.max(System.nanoTime() - startedAt, 1L) / 1e9;
+      long frames;
+
+      lock.lock();
+
+      try {
+        frames = framesIn;
+      } finally {
+        lock.unlock();
+      }
+
+      log.info(
+        "Terminal {} output: {} bytes in {} frames, sent as {} messages ({} KiB/s), latency avg {} ms, max {} ms",
+        terminalId, bytesOut, frames, messagesOut,
+        String.format("%.1f", bytesOut / 1024.0 / seconds),
+        messagesOut == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos / messagesOut),
+        TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos)
+      );
+    }
+  }
+
+  // unsent bytes stay under queueBytes and are never overwritten by the payload
+  // (one bigger than the ring goes once everything before it is sent)
+  private boolean hasRoom(int length) {
+    long unsent = end - sentOffset;
+
+    return unsent < queueBytes && (unsent == 0 || unsent + length <= ring.capacity());
+  }
+
+  private boolean hasWork() {
+    return ws != null && (announce || !notices.isEmpty() || end > sentOffset);
+  }
+
+  private void write(long offset, byte[] src, int from, int length) {
+    int index = (int) (offset % ring.capacity());
+    int first = Math.min(length, ring.capacity() - index);
+
+    ring.put(index, src, from, first);
+    ring.put(0, src, from + first, length - first);
+  }
+
+  private void read(long offset, byte[] dst) {
+    int index = (int) (offset % ring.capacity());
+    int first = Math.min(dst.length, ring.capacity() - index);
+
+    ring.get(index, dst, 0, first);
+    ring.get(0, dst, first, dst.length - first);
+  }
+
+}
\ No newline at end of file
@@ -1,8 +1,7 @@
 package com.something.kodex_backend.terminal;
 
 import lombok.Builder;
-
-import java.io.OutputStream;
+import org.springframework.web.socket.WebSocketSession;
 
 @Builder
 public class TerminalSession {
@@ -16,9 +15,18 @@ public class TerminalSession {
   public String containerId;
 
   // the id of current terminal associated with this websocket session
+  // also the id a client uses to attach to the terminal again
   public String execId;
 
-  // the output stream of the current terminal
-  public OutputStream outputStream;
+  public Integer projectId;
+
+  // the websocket the terminal is attached to, or was last
+  public WebSocketSession ws;
+
+  // stdin of the current terminal
+  public TerminalInputChannel input;
+
+  // sends what the terminal prints to the websocket
+  public TerminalOutputPump outputPump;
 
 }
\ No newline at end of file
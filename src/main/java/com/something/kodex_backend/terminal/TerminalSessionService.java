@@ -5,20 +5,24 @@ import com.github.dockerjava.api.async.ResultCallback;
 import com.github.dockerjava.api.command.ExecCreateCmdResponse;
 import com.github.dockerjava.api.model.Frame;
 import com.something.kodex_backend.project.ProjectMountService;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class TerminalSessionService {
@@ -27,17 +31,56 @@ public class TerminalSessionService {
   private final DockerClient dockerClient;
   private final ProjectMountService projectMountService;
 
+  // websocket session id to the terminal attached to it
   private final Map<String, TerminalSession> sessionMap = new ConcurrentHashMap<> ();
+  // execId to terminal, attached or not
+  private final Map<String, TerminalSession> terminals = new ConcurrentHashMap<> ();
+  // execId to the expiry of a terminal whose client went away
+  private final Map<String, Object> detachedTerminals = new ConcurrentHashMap<> ();
 
   // used to clean up container if no session is associated with it
-  // TODO: in future make container persist a little bit
-  // after all sessions associated with are removed to give
-  // a chance for reconnect and save on cold start of container
+  // (after the retention window below, to give a chance for reconnect)
   private final Map<String, Integer> userSessionCountMap = new ConcurrentHashMap<> ();
+  // userId to the teardown of its container waiting for the retention window to run out
+  private final Map<String, PendingTeardown> pendingTeardowns = new ConcurrentHashMap<> ();
+  // userId to the lock held while its container is set up or torn down
+  private final Map<String, Object> userLocks = new ConcurrentHashMap<> ();
+  private final ScheduledExecutorService teardownScheduler = Executors.newSingleThreadScheduledExecutor();
   private final static Path LOCAL_ROOT = Path.of("/tmp/kodex/projects");
 
+  // terminal output is sent in batches of up to this many bytes
+  @Value("${kodex.terminal.output-batch-bytes:32768}")
+  private int outputBatchBytes;
+
+  // how long output waits for more output to join its batch
+  @Value("${kodex.terminal.output-linger-millis:5}")
+  private long outputLingerMillis;
+
+  // output waiting for a slow client, past this the container's output is held back
+  @Value("${kodex.terminal.output-queue-bytes:1048576}")
+  private long outputQueueBytes;
+
+  // input (e.g. a paste) waiting for the container to read it
+  @Value("${kodex.terminal.input-buffer-bytes:1048576}")
+  private int inputBufferBytes;
+
+  // input queued behind a full buffer, past this more input is refused
+  @Value("${kodex.terminal.input-queue-bytes:16777216}")
+  private long inputQueueBytes;
+
+  // recent output of every terminal kept off heap, replayed to a client attaching again
+  @Value("${kodex.terminal.scrollback-bytes:1048576}")
+  private int scrollbackBytes;
+
+  // the container and the project stay up this long after the last terminal of a user closed,
+  // so a page refresh or a dropped connection reattaches instead of starting cold
+  // a terminal whose client went away keeps running just as long
+  @Value("${kodex.terminal.retention-seconds:60}")
+  private long retentionSeconds;
+
   public void createTerminal(String userId, Integer projectId, WebSocketSession ws) throws IOException {
-    if(userSessionCountMap.getOrDefault(userId, 0) >= 4) {
+    // terminals kept running for their client to come back count too
+    if(liveTerminals(userId) >= 4) {
       System.err.printf(
         "User with userId: %s has reached max allowed terminal limit! (which is 4)",
         userId
@@ -55,36 +98,88 @@ public class TerminalSessionService {
     // if this method wins the project root will be
     // created by 'root' user which WILL cause issues
     Files.createDirectories(projectRoot);
-    String containerId = dockerService.getOrCreateForUser(userId, projectRoot, projectId);
 
-    dockerService.startContainer(containerId);
+    // files of a big project still being downloaded are empty placeholders,
+    // and reads inside the container can't be caught to download them first
+    try {
+      projectMountService.awaitHydration(projectId);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+
+      throw new IOException("Interrupted while waiting for project files", ex);
+    }
+
+    String containerId;
+    PendingTeardown replaced = null;
+
+    synchronized(userLock(userId)) {
+      PendingTeardown pending = pendingTeardowns.remove(userId);
+
+      // back within the retention window, the container is still up with the project mounted
+      // another project needs a container with its own folder mounted though
+      if(pending != null && !pending.projectId.equals(projectId)) {
+        removeContainer(userId, pending);
+        replaced = pending;
+      } else if(pending != null) {
+        log.info("user {} reattached to container {}", userId, pending.containerId);
+      }
+
+      containerId = dockerService.getOrCreateForUser(userId, projectRoot, projectId);
+
+      dockerService.startContainer(containerId);
+    }
+
+    // its last push to drive doesn't hold up the new terminal
+    if(replaced != null) {
+      PendingTeardown previous = replaced;
+      Thread.ofVirtual().start(() -> closeProject(userId, previous));
+    }
 
     // make a new terminal process inside container
     ExecCreateCmdResponse exec = dockerService.createExec(containerId);
 
     String sessionId = ws.getId();
 
-    PipedOutputStream pipedOutputStream = new PipedOutputStream();
-    PipedInputStream pipedInputStream = new PipedInputStream(pipedOutputStream);
+    TerminalInputChannel input = new TerminalInputChannel(exec.getId(), inputBufferBytes, inputQueueBytes);
+    input.start();
+
+    TerminalOutputPump outputPump = new TerminalOutputPump(
+      exec.getId(), scrollbackBytes, outputBatchBytes, outputLingerMillis, outputQueueBytes
+    );
+    outputPump.attach(ws, 0L);
+    outputPump.start();
 
     dockerClient.execStartCmd(exec.getId())
       .withTty(true)
       // TODO: why exactly detaching gives a funny error?
       .withDetach(false)
-      .withStdIn(pipedInputStream)
+      .withStdIn(input)
       .exec(
         new ResultCallback.Adapter<Frame> () {
           // this is for stdout and stderr both
           @Override
           public void onNext(Frame frame) {
             try {
-              ws.sendMessage(
-                new BinaryMessage(frame.getPayload())
-              );
-            } catch(IOException ex) {
-              throw new RuntimeException(ex);
+              outputPump.offer(frame.getPayload());
+            } catch(InterruptedException ex) {
+              Thread.currentThread().interrupt();
             }
           }
+
+          // the shell is gone, input queued for it is dropped
+          @Override
+          public void onComplete() {
+            super.onComplete();
+            input.close();
+            outputPump.close();
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            super.onError(throwable);
+            input.close();
+            outputPump.close();
+          }
         }
       );
 
@@ -92,7 +187,10 @@ public class TerminalSessionService {
       .userId(userId)
       .containerId(containerId)
       .execId(exec.getId())
-      .outputStream(pipedOutputStream)
+      .projectId(projectId)
+      .ws(ws)
+      .input(input)
+      .outputPump(outputPump)
       .build();
 
     // BiFunction<Integer, Integer, Integer> sum = (a, b) -> a + b;
@@ -103,16 +201,59 @@ public class TerminalSessionService {
       Integer::sum
     );
 
+    terminals.put(exec.getId(), ts);
     sessionMap.put(sessionId, ts);
   }
 
-  public void sendInput(String sessionId, String data) throws IOException {
+  // attaches a new websocket to a running terminal, replaying its output after offset
+  // false if there's no such terminal (anymore), the client should get a new one then
+  public boolean resumeTerminal(
+    String userId,
+    Integer projectId,
+    String terminalId,
+    long offset,
+    WebSocketSession ws
+  ) {
+    TerminalSession ts = terminals.get(terminalId);
+
+    if(ts == null || !ts.userId.equals(userId) || !ts.projectId.equals(projectId)) return false;
+
+    synchronized(userLock(userId)) {
+      if(ts.outputPump.isClosed()) return false;
+
+      if(detachedTerminals.remove(terminalId) != null) {
+        // the container was about to go with it
+        pendingTeardowns.remove(userId);
+        userSessionCountMap.merge(userId, 1, Integer::sum);
+      } else {
+        // the old connection isn't noticed as closed yet, it's replaced
+        sessionMap.remove(ts.ws.getId(), ts);
+      }
+
+      ts.ws = ws;
+      sessionMap.put(ws.getId(), ts);
+      ts.outputPump.attach(ws, offset);
+    }
+
+    log.info("user {} resumed terminal {} from offset {}", userId, terminalId, offset);
+
+    return true;
+  }
+
+  // never waits, input the container is behind on reading is queued for it, so a big paste
+  // goes in at the pace the container reads it while the session's other messages go on
+  // the client is told if its input is refused (the container hasn't read a lot of it)
+  public void sendInput(String sessionId, String data) {
     TerminalSession ts = sessionMap.get(sessionId);
 
     if(ts == null) return;
 
-    ts.outputStream.write(data.getBytes(StandardCharsets.UTF_8));
-    ts.outputStream.flush();
+    if(!ts.input.submit(data.getBytes(StandardCharsets.UTF_8))) {
+      log.warn("Terminal {} isn't reading its input, refused {} chars", ts.execId, data.length());
+      ts.outputPump.notice(
+        "{\"type\":\"error\",\"terminal_id\":\"" + ts.execId + "\",\"message\":\"input refused, the terminal isn't reading it\"}"
+      );
+    }
   }
 
   public void handleResize(String sessionId, int cols, int rows) {
@@ -130,32 +271,122 @@ public class TerminalSessionService {
   }
 
   // TODO: fix - something is going wrong while removing container
+  // the terminal keeps running detached for the retention window, for its client to come back
   public void closeSession(String sessionId, Integer projectId) {
     TerminalSession ts = sessionMap.get(sessionId);
     if(ts == null) return;
 
+    synchronized(userLock(ts.userId)) {
+      // resumed on another connection already
+      if(!sessionMap.remove(sessionId, ts)) return;
+
+      ts.outputPump.detach(ts.ws);
+
+      Object expiry = new Object();
+      detachedTerminals.put(ts.execId, expiry);
+
+      teardownScheduler.schedule(
+        () -> expireTerminal(ts, expiry),
+        retentionSeconds,
+        TimeUnit.SECONDS
+      );
+
+      int count = userSessionCountMap.merge(
+        ts.userId,
+        -1,
+        Integer::sum
+      );
+
+      if(count <= 0) {
+        PendingTeardown pending = new PendingTeardown(ts.containerId, projectId);
+        pendingTeardowns.put(ts.userId, pending);
+
+        teardownScheduler.schedule(
+          () -> Thread.ofVirtual().start(() -> expire(ts.userId, pending)),
+          retentionSeconds,
+          TimeUnit.SECONDS
+        );
+      }
+    }
+  }
+
+  private void expireTerminal(TerminalSession ts, Object expiry) {
+    synchronized(userLock(ts.userId)) {
+      // its client came back
+      if(!detachedTerminals.remove(ts.execId, expiry)) return;
+    }
+
+    terminals.remove(ts.execId, ts);
+
+    // the shell gets end of input and exits
+    ts.input.close();
+    ts.outputPump.close();
+  }
+
+  // nothing is left waiting on shutdown, the projects still get their last push
+  @PreDestroy
+  public void close() {
+    teardownScheduler.shutdownNow();
+
+    for(String userId : pendingTeardowns.keySet()) {
+      PendingTeardown pending = pendingTeardowns.get(userId);
+
+      if(pending != null) expire(userId, pending);
+    }
+  }
+
+  // the container goes under the user's lock, so a reconnect never gets it half removed,
+  // the project is closed after, its last push can take a while and a reconnect doesn't wait for it
+  private void expire(String userId, PendingTeardown pending) {
+    synchronized(userLock(userId)) {
+      // reconnected in the meantime
+      if(!pendingTeardowns.remove(userId, pending)) return;
+      if(userSessionCountMap.getOrDefault(userId, 0) > 0) return;
+
+      removeContainer(userId, pending);
+    }
+
+    closeProject(userId, pending);
+  }
+
+  private void removeContainer(String userId, PendingTeardown pending) {
     try {
-      ts.outputStream.close();
-    } catch(Exception ex) {
-      throw new RuntimeException(ex);
+      dockerService.stopAndRemoveContainer(userId, pending.containerId);
+    } catch(RuntimeException ex) {
+      log.error("failed to remove container {} of user {}", pending.containerId, userId, ex);
     }
+  }
 
-    int count = userSessionCountMap.merge(
-      ts.userId,
-      -1,
-      Integer::sum
-    );
+  private void closeProject(String userId, PendingTeardown pending) {
+    try {
+      projectMountService.closeProject(pending.projectId);
+    } catch(IOException | RuntimeException ex) {
+      log.error("failed to close project {} of user {}", pending.projectId, userId, ex);
+    } catch(InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
-    if(count <= 0) {
-      dockerService.stopAndRemoveContainer(ts.userId, ts.containerId);
+  // attached or kept running for their client, until their shell exits
+  private long liveTerminals(String userId) {
+    return terminals.values().stream()
+      .filter(ts -> ts.userId.equals(userId) && !ts.outputPump.isClosed())
+      .count();
+  }
 
-      try {
-        projectMountService.closeProject(projectId);
-      } catch(IOException | InterruptedException ex) {
-        throw new RuntimeException(ex);
-      }
+  private Object userLock(String userId) {
+    return userLocks.computeIfAbsent(userId, k -> new Object());
+  }
+
+  private static class PendingTeardown {
+
+    private final String containerId;
+    private final Integer projectId;
+
+    private PendingTeardown(String containerId, Integer projectId) {
+      this.containerId = containerId;
+      this.projectId = projectId;
     }
 
-    sessionMap.remove(sessionId);
   }
 }
\ No newline at end of file
@@ -60,7 +60,16 @@ public class TerminalWebSocketHandler extends AbstractWebSocketHandler {
         session.getAttributes().put("authenticated", true);
         session.getAttributes().put("projectId", projectId);
 
-        terminalSessionService.createTerminal(username, projectId, session);
+        // a client coming back to its terminal says which one and how much output it got
+        boolean resumed = node.hasNonNull("terminal_id") && terminalSessionService.resumeTerminal(
+          username,
+          projectId,
+          node.get("terminal_id").asString(),
+          node.hasNonNull("offset") ? node.get("offset").asLong() : 0L,
+          session
+        );
+
+        if(!resumed) terminalSessionService.createTerminal(username, projectId, session);
       } catch(Exception ex) {
         throw new RuntimeException(ex);
       }
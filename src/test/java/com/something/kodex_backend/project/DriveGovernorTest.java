@@ -0,0 +1,127 @@
+package com.something.kodex_backend.project;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DriveGovernorTest {
+
+  private DriveGovernor driveGovernor;
+
+  @BeforeEach
+  void setUp() {
+    driveGovernor = new DriveGovernor();
+    ReflectionTestUtils.setField(driveGovernor, "requestsPerSecond", 1000.0);
+    ReflectionTestUtils.setField(driveGovernor, "userRequestsPerSecond", 1000.0);
+    ReflectionTestUtils.setField(driveGovernor, "initialConcurrency", 8);
+    ReflectionTestUtils.setField(driveGovernor, "maxConcurrency", 32);
+    ReflectionTestUtils.setField(driveGovernor, "maxRetries", 2);
+  }
+
+  @Test
+  void tellsRateLimitsApart() {
+    assertTrue(DriveGovernor.isRateLimited(error(429, null)));
+    assertTrue(DriveGovernor.isRateLimited(error(403, "{\"reason\": \"userRateLimitExceeded\"}")));
+    assertFalse(DriveGovernor.isRateLimited(error(403, "{\"reason\": \"insufficientPermissions\"}")));
+    assertFalse(DriveGovernor.isRateLimited(error(404, null)));
+    assertFalse(DriveGovernor.isRateLimited(new IOException("connection reset")));
+  }
+
+  @Test
+  void retriesARateLimitedCall() throws IOException {
+    AtomicInteger calls = new AtomicInteger();
+
+    String result = driveGovernor.execute("user", 1, () -> {
+      if(calls.incrementAndGet() == 1) throw error(429, null);
+
+      return "done";
+    });
+
+    assertEquals("done", result);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void givesUpAfterMaxRetries() {
+    ReflectionTestUtils.setField(driveGovernor, "maxRetries", 0);
+    AtomicInteger calls = new AtomicInteger();
+    HttpResponseException rateLimited = error(429, null);
+
+    IOException thrown = assertThrows(IOException.class, () -> driveGovernor.execute("user", 1, () -> {
+      calls.incrementAndGet();
+
+      throw rateLimited;
+    }));
+
+    assertSame(rateLimited, thrown);
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void doesNotRetryOtherErrors() {
+    AtomicInteger calls = new AtomicInteger();
+
+    assertThrows(IOException.class, () -> driveGovernor.execute("user", 1, () -> {
+      calls.incrementAndGet();
+
+      throw error(404, null);
+    }));
+
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  void holdsCallsToTheUsersRate() throws IOException {
+    ReflectionTestUtils.setField(driveGovernor, "userRequestsPerSecond", 10.0);
+
+    long startedAt = System.nanoTime();
+
+    // the bucket holds a second worth, the other 5 are let through at 10 a second
+    for(int i = 0; i < 15; i++) {
+      driveGovernor.execute("user", 1, () -> null);
+    }
+
+    long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+
+    assertTrue(elapsedMillis >= 400, "took " + elapsedMillis + " ms");
+  }
+
+  @Test
+  void otherUsersHaveTheirOwnBucket() throws IOException {
+    ReflectionTestUtils.setField(driveGovernor, "userRequestsPerSecond", 10.0);
+
+    for(int i = 0; i < 10; i++) {
+      driveGovernor.execute("first", 1, () -> null);
+    }
+
+    long startedAt = System.nanoTime();
+
+    for(int i = 0; i < 10; i++) {
+      driveGovernor.execute("second", 1, () -> null);
+    }
+
+    long elapsedMillis = (System.nanoTime() - startedAt) / 1_000_000;
+
+    assertTrue(elapsedMillis < 300, "took " + elapsedMillis + " ms");
+  }
+
+  private static HttpResponseException error(int statusCode, String content) {
+    HttpResponseException.Builder builder = new HttpResponseException.Builder(statusCode, null, new HttpHeaders());
+
+    if(content != null) builder.setContent(content);
+
+    return builder.build();
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+package com.something.kodex_backend.project;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IgnoreRulesTest {
+
+  @TempDir
+  Path projectRoot;
+
+  private IgnoreRules ignoreRules;
+
+  @BeforeEach
+  void setUp() {
+    ignoreRules = new IgnoreRules();
+    ReflectionTestUtils.setField(ignoreRules, "defaultIgnores", List.of(".git/objects/"));
+  }
+
+  @Test
+  void defaultIgnoresApplyWithoutIgnoreFiles() {
+    assertTrue(ignoreRules.isIgnored(projectRoot, ".git/objects/ab/cdef", false));
+    assertFalse(ignoreRules.isIgnored(projectRoot, ".git/HEAD", false));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "src/Main.java", false));
+  }
+
+  @Test
+  void followsGitignoreSemantics() throws IOException {
+    Files.writeString(projectRoot.resolve(".gitignore"), "*.log\n!keep.log\nbuild/\n/out\n# comment\n");
+
+    assertTrue(ignoreRules.isIgnored(projectRoot, "app.log", false));
+    assertTrue(ignoreRules.isIgnored(projectRoot, "deep/down/app.log", false));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "keep.log", false));
+
+    // a trailing slash is for folders only, and ignores everything inside
+    assertTrue(ignoreRules.isIgnored(projectRoot, "build", true));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "build", false));
+    assertTrue(ignoreRules.isIgnored(projectRoot, "sub/build/classes/A.class", false));
+
+    // anchored to the root
+    assertTrue(ignoreRules.isIgnored(projectRoot, "out", true));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "sub/out", true));
+  }
+
+  @Test
+  void nestedFilesApplyBelowTheirFolderAndKodexignoreOverrides() throws IOException {
+    Files.createDirectories(projectRoot.resolve("web"));
+    Files.writeString(projectRoot.resolve("web/.gitignore"), "dist/\n*.tmp\n");
+    Files.writeString(projectRoot.resolve(".kodexignore"), "!web/cache.tmp\n");
+
+    assertTrue(ignoreRules.isIgnored(projectRoot, "web/dist", true));
+    assertTrue(ignoreRules.isIgnored(projectRoot, "web/a/b.tmp", false));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "dist", true));
+    assertFalse(ignoreRules.isIgnored(projectRoot, "c.tmp", false));
+
+    // the root's rules are read first, so the nested .gitignore wins over them
+    assertTrue(ignoreRules.isIgnored(projectRoot, "web/cache.tmp", false));
+
+    Files.writeString(projectRoot.resolve("web/.kodexignore"), "!cache.tmp\n");
+    ignoreRules.invalidate(projectRoot);
+
+    assertFalse(ignoreRules.isIgnored(projectRoot, "web/cache.tmp", false));
+  }
+
+  @Test
+  void walkSkipsIgnoredFoldersAndPullTempFiles() throws IOException {
+    Files.writeString(projectRoot.resolve(".gitignore"), "node_modules/\n");
+    Files.createDirectories(projectRoot.resolve("node_modules/lib"));
+    Files.writeString(projectRoot.resolve("node_modules/lib/index.js"), "");
+    Files.createDirectories(projectRoot.resolve("src"));
+    Files.writeString(projectRoot.resolve("src/main.js"), "");
+    Files.writeString(projectRoot.resolve("src/" + IgnoreRules.TEMP_PREFIX + "123"), "");
+
+    List<String> walked = ignoreRules.walk(projectRoot, projectRoot).stream()
+      .map(path -> projectRoot.relativize(path).toString())
+      .sorted()
+      .toList();
+
+    assertEquals(List.of("", ".gitignore", "src", "src/main.js"), walked);
+  }
+
+}
\ No newline at end of file
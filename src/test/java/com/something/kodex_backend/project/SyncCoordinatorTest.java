@@ -0,0 +1,164 @@
+package com.something.kodex_backend.project;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class SyncCoordinatorTest {
+
+  private static final Integer PROJECT = 1;
+  private static final String DRIVE_ID = "drive-1";
+
+  private FileSyncEngine fileSyncEngine;
+  private SyncCoordinator syncCoordinator;
+
+  @BeforeEach
+  void setUp() {
+    fileSyncEngine = mock(FileSyncEngine.class);
+    syncCoordinator = new SyncCoordinator(fileSyncEngine);
+  }
+
+  @Test
+  void pushOfAProjectNotOpenDoesNothing() throws Exception {
+    syncCoordinator.push(PROJECT, DRIVE_ID, List.of("a.txt"));
+
+    verify(fileSyncEngine, never()).push(any(), any(), any());
+  }
+
+  @Test
+  void pushesChangedPathsOrEverything() throws Exception {
+    syncCoordinator.open(PROJECT);
+
+    syncCoordinator.push(PROJECT, DRIVE_ID, List.of("a.txt"));
+    syncCoordinator.push(PROJECT, DRIVE_ID, null);
+
+    verify(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("a.txt")));
+    verify(fileSyncEngine).push(PROJECT, DRIVE_ID);
+  }
+
+  @Test
+  void pushesAskedForWhileOneRunsAreMergedIntoOneRun() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    doAnswer(invocation -> {
+      Collection<String> paths = invocation.getArgument(2);
+
+      if(paths.contains("first.txt")) {
+        running.countDown();
+        release.await();
+      }
+
+      return null;
+    }).when(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), anyCollection());
+
+    syncCoordinator.open(PROJECT);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    try {
+      Future<?> first = executor.submit(() -> push("first.txt"));
+      assertTrue(running.await(5, TimeUnit.SECONDS));
+
+      Future<?> second = executor.submit(() -> push("second.txt"));
+      Future<?> third = executor.submit(() -> push("third.txt"));
+
+      // both are waiting behind the running push by now
+      Thread.sleep(200);
+      release.countDown();
+
+      first.get(5, TimeUnit.SECONDS);
+      second.get(5, TimeUnit.SECONDS);
+      third.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("first.txt")));
+    verify(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("second.txt", "third.txt")));
+    verify(fileSyncEngine, times(2)).push(eq(PROJECT), eq(DRIVE_ID), anyCollection());
+  }
+
+  @Test
+  void closedProjectTakesNoPushesUntilOpenedAgain() throws Exception {
+    syncCoordinator.open(PROJECT);
+    syncCoordinator.close(PROJECT, DRIVE_ID);
+
+    verify(fileSyncEngine).cleanup(PROJECT, DRIVE_ID);
+
+    syncCoordinator.push(PROJECT, DRIVE_ID, List.of("a.txt"));
+    verify(fileSyncEngine, never()).push(any(), any(), any());
+
+    syncCoordinator.open(PROJECT);
+    syncCoordinator.push(PROJECT, DRIVE_ID, List.of("a.txt"));
+    verify(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("a.txt")));
+  }
+
+  @Test
+  void closeCompletesAPushStillWaitingWithoutRunningIt() throws Exception {
+    CountDownLatch running = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+
+    doAnswer(invocation -> {
+      running.countDown();
+      release.await();
+
+      return null;
+    }).when(fileSyncEngine).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("first.txt")));
+
+    syncCoordinator.open(PROJECT);
+
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    try {
+      Future<?> first = executor.submit(() -> push("first.txt"));
+      assertTrue(running.await(5, TimeUnit.SECONDS));
+
+      // close gets the lane first, the push asked for after it joins the run still waiting
+      Future<?> close = executor.submit(() -> {
+        syncCoordinator.close(PROJECT, DRIVE_ID);
+
+        return null;
+      });
+      Thread.sleep(100);
+
+      Future<?> waiting = executor.submit(() -> push("waiting.txt"));
+      Thread.sleep(100);
+      release.countDown();
+
+      first.get(5, TimeUnit.SECONDS);
+      waiting.get(5, TimeUnit.SECONDS);
+      close.get(5, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(fileSyncEngine, never()).push(eq(PROJECT), eq(DRIVE_ID), eq(Set.of("waiting.txt")));
+    verify(fileSyncEngine).cleanup(PROJECT, DRIVE_ID);
+  }
+
+  private Void push(String path) throws Exception {
+    syncCoordinator.push(PROJECT, DRIVE_ID, List.of(path));
+
+    return null;
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,182 @@
+package com.something.kodex_backend.project;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyncJournalTest {
+
+  private static final Integer PROJECT = 7;
+
+  @TempDir
+  Path stateDir;
+
+  private SyncJournal syncJournal;
+
+  @BeforeEach
+  void setUp() {
+    syncJournal = newJournal(3);
+  }
+
+  @Test
+  void replaysEveryKindOfRecord() {
+    DriveFile file = new DriveFile("id-1", "src/a\tb.txt", "md5-1", 100L, 10L);
+    UploadSession upload = new UploadSession("big.bin", "https://upload/1", 1000L, 200L);
+
+    syncJournal.appendPut(PROJECT, file);
+    syncJournal.appendPut(PROJECT, new DriveFile("id-2", "gone.txt", null, 0L, 0L));
+    syncJournal.appendRemove(PROJECT, "gone.txt");
+    syncJournal.appendFolderPut(PROJECT, "src", "folder-1");
+    syncJournal.appendFolderPut(PROJECT, "old", "folder-2");
+    syncJournal.appendFolderRemove(PROJECT, "old");
+    syncJournal.appendUploadPut(PROJECT, upload);
+    syncJournal.appendPageToken(PROJECT, "token-1");
+    syncJournal.close(PROJECT);
+
+    SyncJournal.PersistedState state = newJournal(3).load(PROJECT);
+
+    assertEquals(Map.of("src/a\tb.txt", file), state.getFiles());
+    assertEquals(Map.of("src", "folder-1"), state.getFolders());
+    assertEquals(Map.of("big.bin", upload), state.getUploadSessions());
+    assertEquals("token-1", state.getPageToken());
+  }
+
+  @Test
+  void dropsATornTailAndKeepsWhatCameBefore() throws IOException {
+    DriveFile kept = new DriveFile("id-1", "kept.txt", "md5-1", 100L, 10L);
+    syncJournal.appendPut(PROJECT, kept);
+    syncJournal.close(PROJECT);
+
+    // died halfway through the size of the next record, which would still parse as a number
+    append("P\ttorn.txt\tid-2\tmd5-2\t200\t45");
+
+    SyncJournal.PersistedState state = newJournal(3).load(PROJECT);
+
+    assertEquals(Map.of("kept.txt", kept), state.getFiles());
+  }
+
+  @Test
+  void dropsATailTornInsideACharacter() throws IOException {
+    DriveFile kept = new DriveFile("id-1", "kept.txt", "md5-1", 100L, 10L);
+    syncJournal.appendPut(PROJECT, kept);
+    syncJournal.close(PROJECT);
+
+    byte[] record = "P\tnaïve.txt\tid-2".getBytes(StandardCharsets.UTF_8);
+    // cut right after the first byte of the two byte ï
+    Files.write(
+      journalFile(),
+      Arrays.copyOf(record, "P\tna".length() + 1),
+      StandardOpenOption.APPEND
+    );
+
+    assertEquals(Map.of("kept.txt", kept), newJournal(3).load(PROJECT).getFiles());
+  }
+
+  @Test
+  void appendsAfterATornTailAreKept() throws IOException {
+    syncJournal.appendPut(PROJECT, new DriveFile("id-1", "a.txt", "md5-1", 1L, 1L));
+    syncJournal.close(PROJECT);
+    append("P\ttorn.txt\tid");
+
+    // reopened after the restart, the next record must not be glued onto the torn one
+    SyncJournal reopened = newJournal(3);
+    DriveFile next = new DriveFile("id-3", "b.txt", "md5-3", 3L, 3L);
+    reopened.appendPut(PROJECT, next);
+    reopened.close(PROJECT);
+
+    SyncJournal.PersistedState state = newJournal(3).load(PROJECT);
+
+    assertEquals(2, state.getFiles().size());
+    assertEquals(next, state.getFiles().get("b.txt"));
+  }
+
+  @Test
+  void skipsMalformedRecordsInTheMiddle() throws IOException {
+    Files.createDirectories(stateDir);
+    Files.writeString(journalFile(), "P\ta.txt\tid\tmd5\tx\t1\nX\tnonsense\nF\tsrc\tfolder-1\n");
+
+    SyncJournal.PersistedState state = syncJournal.load(PROJECT);
+
+    assertTrue(state.getFiles().isEmpty());
+    assertEquals(Map.of("src", "folder-1"), state.getFolders());
+  }
+
+  @Test
+  void compactionFoldsTheJournalIntoTheSnapshot() throws IOException {
+    DriveFile file = new DriveFile("id-1", "a.txt", "md5-1", 1L, 1L);
+
+    assertFalse(syncJournal.appendPut(PROJECT, file));
+    assertFalse(syncJournal.appendFolderPut(PROJECT, "src", "folder-1"));
+    // the threshold of 3 records is reached
+    assertTrue(syncJournal.appendPageToken(PROJECT, "token-1"));
+
+    syncJournal.compact(PROJECT, Map.of("a.txt", file), Map.of("src", "folder-1"), Map.of(), "token-1");
+
+    assertEquals(0L, Files.size(journalFile()));
+
+    // records after the snapshot are replayed over it
+    DriveFile changed = new DriveFile("id-1", "a.txt", "md5-2", 2L, 2L);
+    assertFalse(syncJournal.appendPut(PROJECT, changed));
+    syncJournal.close(PROJECT);
+
+    SyncJournal.PersistedState state = newJournal(3).load(PROJECT);
+
+    assertEquals(Map.of("a.txt", changed), state.getFiles());
+    assertEquals(Map.of("src", "folder-1"), state.getFolders());
+    assertEquals("token-1", state.getPageToken());
+  }
+
+  @Test
+  void unpushedMarkerSurvivesUntilCleared() {
+    assertFalse(syncJournal.hasUnpushed(PROJECT));
+
+    syncJournal.markUnpushed(PROJECT);
+    assertTrue(newJournal(3).hasUnpushed(PROJECT));
+
+    syncJournal.clearUnpushed(PROJECT);
+    assertFalse(syncJournal.hasUnpushed(PROJECT));
+  }
+
+  @Test
+  void deleteRemovesEverything() {
+    syncJournal.appendPageToken(PROJECT, "token-1");
+    syncJournal.markUnpushed(PROJECT);
+
+    syncJournal.delete(PROJECT);
+
+    assertTrue(syncJournal.load(PROJECT).isEmpty());
+    assertNull(syncJournal.load(PROJECT).getPageToken());
+    assertFalse(syncJournal.hasUnpushed(PROJECT));
+  }
+
+  private SyncJournal newJournal(int compactThreshold) {
+    SyncJournal journal = new SyncJournal();
+    ReflectionTestUtils.setField(journal, "stateDir", stateDir);
+    ReflectionTestUtils.setField(journal, "compactThreshold", compactThreshold);
+
+    return journal;
+  }
+
+  private Path journalFile() {
+    return stateDir.resolve(PROJECT + ".journal");
+  }
+
+  private void append(String text) throws IOException {
+    Files.writeString(journalFile(), text, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+  }
+
+}
\ No newline at end of file
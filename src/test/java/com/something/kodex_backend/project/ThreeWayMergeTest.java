@@ -0,0 +1,60 @@
+package com.something.kodex_backend.project;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ThreeWayMergeTest {
+
+  private static final String BASE = "one\ntwo\nthree\nfour\nfive\n";
+
+  @Test
+  void takesChangesOfBothSidesInDifferentLines() {
+    String local = "one\nTWO\nthree\nfour\nfive\n";
+    String remote = "one\ntwo\nthree\nfour\nFIVE\nsix\n";
+
+    assertEquals(Optional.of("one\nTWO\nthree\nfour\nFIVE\nsix\n"), ThreeWayMerge.merge(BASE, local, remote));
+  }
+
+  @Test
+  void takesTheOnlySideWhichChanged() {
+    String local = "zero\none\ntwo\nfour\nfive\n";
+
+    assertEquals(Optional.of(local), ThreeWayMerge.merge(BASE, local, BASE));
+    assertEquals(Optional.of(local), ThreeWayMerge.merge(BASE, BASE, local));
+  }
+
+  @Test
+  void sameChangeOnBothSidesIsNoConflict() {
+    String changed = "one\ntwo\n3\nfour\nfive\n";
+
+    assertEquals(Optional.of(changed), ThreeWayMerge.merge(BASE, changed, changed));
+  }
+
+  @Test
+  void conflictsWhenBothChangeTheSameLines() {
+    String local = "one\ntwo\nlocal\nfour\nfive\n";
+    String remote = "one\ntwo\nremote\nfour\nfive\n";
+
+    assertTrue(ThreeWayMerge.merge(BASE, local, remote).isEmpty());
+  }
+
+  @Test
+  void keepsLineEndingsAndAMissingLastNewLine() {
+    String base = "a\r\nb\r\nc";
+    String local = "A\r\nb\r\nc";
+    String remote = "a\r\nb\r\nC";
+
+    assertEquals(Optional.of("A\r\nb\r\nC"), ThreeWayMerge.merge(base, local, remote));
+  }
+
+  @Test
+  void mergesIntoAnEmptyBase() {
+    assertEquals(Optional.of("x\n"), ThreeWayMerge.merge("", "x\n", ""));
+    assertTrue(ThreeWayMerge.merge("", "x\n", "y\n").isEmpty());
+  }
+
+}
\ No newline at end of file
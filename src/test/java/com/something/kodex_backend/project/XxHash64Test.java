@@ -0,0 +1,67 @@
+package com.something.kodex_backend.project;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class XxHash64Test {
+
+  @TempDir
+  Path dir;
+
+  // reference values of xxh64 with seed 0
+  @Test
+  void matchesReferenceValues() throws IOException {
+    assertEquals(0xEF46DB3751D8E999L, hashFile(new byte[0]));
+    assertEquals(0xD24EC4F1A98C6E5BL, hashFile("a".getBytes(StandardCharsets.US_ASCII)));
+    assertEquals(0x44BC2CF5AD770999L, hashFile("abc".getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  void hasherMatchesFileHashWhateverThePieces() throws IOException {
+    Random random = new Random(42);
+
+    // around the 32 byte stripe and a bigger file
+    for(int size : new int[] { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 100_003 }) {
+      byte[] data = new byte[size];
+      random.nextBytes(data);
+
+      long expected = hashFile(data);
+
+      for(int piece : new int[] { 1, 7, 32, 33, 4096 }) {
+        XxHash64.Hasher hasher = new XxHash64.Hasher();
+
+        for(int offset = 0; offset < size; offset += piece) {
+          hasher.update(data, offset, Math.min(piece, size - offset));
+        }
+
+        assertEquals(expected, hasher.digest(), "size " + size + " in pieces of " + piece);
+      }
+    }
+  }
+
+  @Test
+  void differsForDifferentContent() throws IOException {
+    byte[] data = new byte[4096];
+    byte[] changed = data.clone();
+    changed[4000] = 1;
+
+    assertNotEquals(hashFile(data), hashFile(changed));
+  }
+
+  private long hashFile(byte[] data) throws IOException {
+    Path file = Files.createTempFile(dir, "hash", null);
+    Files.write(file, data);
+
+    return XxHash64.hash(file);
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,128 @@
+package com.something.kodex_backend.terminal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TerminalInputChannelTest {
+
+  private TerminalInputChannel input;
+
+  @AfterEach
+  void tearDown() {
+    if(input != null) input.close();
+  }
+
+  @Test
+  void inputMuchBiggerThanTheRingComesThroughInOrder() throws Exception {
+    input = new TerminalInputChannel("t", 64, 1 << 20);
+    input.start();
+
+    byte[] expected = new byte[10_000];
+    new Random(1).nextBytes(expected);
+
+    CompletableFuture<byte[]> read = CompletableFuture.supplyAsync(() -> readExactly(expected.length));
+
+    // pieces of different sizes, some bigger than the ring
+    for(int offset = 0, piece = 1; offset < expected.length; offset += piece, piece = piece * 3 % 197 + 1) {
+      int length = Math.min(piece, expected.length - offset);
+      byte[] data = new byte[length];
+      System.arraycopy(expected, offset, data, 0, length);
+
+      assertTrue(input.submit(data));
+    }
+
+    assertArrayEquals(expected, read.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void refusesInputPastTheQueueLimitWhileNothingReads() throws Exception {
+    input = new TerminalInputChannel("t", 16, 64);
+    input.start();
+
+    // fills the ring, nothing reads it
+    assertTrue(input.submit(new byte[16]));
+    waitUntil(() -> input.available() == 16);
+
+    assertTrue(input.submit(new byte[40]));
+    assertTrue(input.submit(new byte[24]));
+    assertFalse(input.submit(new byte[1]));
+
+    // reading frees room, the queue drains into the ring and takes input again
+    readExactly(16 + 40 + 24);
+    waitUntil(() -> input.submit(new byte[1]));
+  }
+
+  @Test
+  void aSinglePasteOverTheLimitIsTakenWhenNothingElseWaits() {
+    input = new TerminalInputChannel("t", 16, 64);
+    input.start();
+
+    byte[] paste = new byte[1000];
+    new Random(2).nextBytes(paste);
+
+    assertTrue(input.submit(paste));
+    assertArrayEquals(paste, readExactly(paste.length));
+  }
+
+  @Test
+  void closeEndsTheInputAndRefusesMore() throws Exception {
+    input = new TerminalInputChannel("t", 16, 64);
+    input.start();
+
+    CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+      try {
+        return input.read();
+      } catch(IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    });
+
+    Thread.sleep(100);
+    input.close();
+
+    assertEquals(-1, read.get(5, TimeUnit.SECONDS));
+    assertFalse(input.submit(new byte[1]));
+  }
+
+  private byte[] readExactly(int length) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[37];
+
+    try {
+      while(out.size() < length) {
+        int n = input.read(buffer, 0, Math.min(buffer.length, length - out.size()));
+
+        if(n == -1) break;
+
+        out.write(buffer, 0, n);
+      }
+    } catch(IOException ex) {
+      throw new RuntimeException(ex);
+    }
+
+    return out.toByteArray();
+  }
+
+  private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+    while(!condition.getAsBoolean()) {
+      if(System.nanoTime() > deadline) throw new AssertionError("timed out");
+
+      Thread.sleep(10);
+    }
+  }
+
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+package com.something.kodex_backend.terminal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+class TerminalOutputPumpTest {
+
+  private TerminalOutputPump pump;
+
+  @BeforeEach
+  void setUp() {
+    pump = new TerminalOutputPump("t", 64, 16, 1, 64);
+    pump.start();
+  }
+
+  @AfterEach
+  void tearDown() {
+    pump.close();
+  }
+
+  @Test
+  void announcesTheOffsetThenSendsOutputInBatches() throws Exception {
+    Client client = new Client();
+    pump.attach(client.ws, 0);
+
+    pump.offer(bytes("hello "));
+    pump.offer(bytes("world, this is longer than a batch"));
+
+    client.awaitOutput("hello world, this is longer than a batch");
+    assertEquals("{\"type\":\"attached\",\"terminal_id\":\"t\",\"offset\":0}", client.texts().getFirst());
+    assertTrue(client.binaries().stream().allMatch(batch -> batch.length <= 16));
+  }
+
+  @Test
+  void clientAttachingAgainGetsWhatItMissedFromTheScrollback() throws Exception {
+    Client first = new Client();
+    pump.attach(first.ws, 0);
+    pump.offer(bytes("before "));
+    first.awaitOutput("before ");
+
+    pump.detach(first.ws);
+    pump.offer(bytes("while away"));
+
+    Client second = new Client();
+    pump.attach(second.ws, 7);
+
+    second.awaitOutput("while away");
+    assertEquals("{\"type\":\"attached\",\"terminal_id\":\"t\",\"offset\":7}", second.texts().getFirst());
+  }
+
+  @Test
+  void outputOverwrittenWhileDetachedStartsAtTheOldestKeptByte() throws Exception {
+    // nothing attached, the ring keeps the last 64 bytes only
+    pump.offer(bytes("x".repeat(100)));
+    pump.offer(bytes("tail"));
+
+    Client client = new Client();
+    pump.attach(client.ws, 0);
+
+    client.awaitOutput("x".repeat(60) + "tail");
+    assertEquals("{\"type\":\"attached\",\"terminal_id\":\"t\",\"offset\":40}", client.texts().getFirst());
+  }
+
+  @Test
+  void noticesGoAheadOfOutput() throws Exception {
+    Client client = new Client();
+    pump.attach(client.ws, 0);
+    client.awaitTexts(1);
+
+    pump.notice("{\"type\":\"error\"}");
+    pump.offer(bytes("out"));
+
+    client.awaitOutput("out");
+    assertEquals(List.of(
+      "{\"type\":\"attached\",\"terminal_id\":\"t\",\"offset\":0}",
+      "{\"type\":\"error\"}"
+    ), client.texts());
+  }
+
+  @Test
+  void failedSendDetachesTheClient() throws Exception {
+    WebSocketSession broken = mock(WebSocketSession.class);
+    doThrow(new IOException("gone")).when(broken).sendMessage(any());
+
+    pump.attach(broken, 0);
+    pump.offer(bytes("lost on the wire"));
+
+    // detached, so output isn't held back waiting for it
+    for(int i = 0; i < 10; i++) pump.offer(bytes("x".repeat(60)));
+
+    Client client = new Client();
+    pump.attach(client.ws, 0);
+    client.awaitOutput("x".repeat(64));
+  }
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static class Client {
+
+    private final WebSocketSession ws = mock(WebSocketSession.class);
+    private final List<WebSocketMessage<?>> messages = new CopyOnWriteArrayList<> ();
+
+    private Client() throws IOException {
+      doAnswer(invocation -> messages.add(invocation.getArgument(0))).when(ws).sendMessage(any());
+    }
+
+    private List<String> texts() {
+      return messages.stream()
+        .filter(message -> message instanceof TextMessage)
+        .map(message -> ((TextMessage) message).getPayload())
+        .toList();
+    }
+
+    private List<byte[]> binaries() {
+      return messages.stream()
+        .filter(message -> message instanceof BinaryMessage)
+        .map(message -> {
+          ByteBuffer payload = ((BinaryMessage) message).getPayload().duplicate();
+          byte[] batch = new byte[payload.remaining()];
+          payload.get(batch);
+
+          return batch;
+        })
+        .toList();
+    }
+
+    private String output() {
+      StringBuilder output = new StringBuilder();
+      binaries().forEach(batch -> output.append(new String(batch, StandardCharsets.UTF_8)));
+
+      return output.toString();
+    }
+
+    private void awaitOutput(String expected) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+      while(!output().equals(expected)) {
+        if(System.nanoTime() > deadline) throw new AssertionError("got \"" + output() + "\"");
+
+        Thread.sleep(10);
+      }
+    }
+
+    private void awaitTexts(int count) throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+      while(texts().size() < count) {
+        if(System.nanoTime() > deadline) throw new AssertionError("got " + texts());
+
+        Thread.sleep(10);
+      }
+    }
+
+  }
+
+}
\ No newline at end of file